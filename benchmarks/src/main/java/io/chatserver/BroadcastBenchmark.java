@@ -0,0 +1,97 @@
+/*
+ * The MIT License (MIT)
+Copyright © 2023 <copyright holders>
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this 
+software and associated documentation files (the “Software”), to deal in the Software 
+without restriction, including without limitation the rights to use, copy, modify, merge, 
+publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons 
+to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies 
+or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR 
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE 
+FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR 
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+DEALINGS IN THE SOFTWARE.
+ */
+
+/*
+ * BroadcastBenchmark
+ * Fan-out of one reply to N connected clients through ChatServer.broadcast:
+ * the reply is encrypted once for the wire format and queued for every
+ * client. wireVersion 0 is the legacy line format, 2 the binary frames.
+ */
+
+package io.chatserver;
+
+import java.net.ProtocolException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+    @Param({"16", "256", "4096"})
+    int payloadSize;
+
+    @Param({"1", "100", "1000"})
+    int clients;
+
+    @Param({"0", "2"})
+    int wireVersion;
+
+    private final List<Session> sessions = new ArrayList<>();
+    private final Frame origin = new Frame();
+    private CipherContext crypto;
+    private byte[] payload;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException, ProtocolException {
+        crypto = new CipherContext();
+        payload = Payloads.bytes(payloadSize);
+        FrameCodec.decodeLine(Payloads.legacyLine(0), origin);
+        for (int i = 0; i < clients; i++) {
+            Session session = new MockSession(wireVersion);
+            sessions.add(session);
+            ChatServer.addClient(session);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (Session session : sessions) {
+            ChatServer.removeClient(session);
+        }
+        sessions.clear();
+    }
+
+    @Benchmark
+    public OutboundMessage broadcast() {
+        OutboundMessage message = new OutboundMessage(FrameCodec.DELIVER, origin, null, payload, crypto);
+        ChatServer.broadcast(message, null);
+        return message;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * The MIT License (MIT)
+Copyright © 2023 <copyright holders>
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this 
+software and associated documentation files (the “Software”), to deal in the Software 
+without restriction, including without limitation the rights to use, copy, modify, merge, 
+publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons 
+to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies 
+or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR 
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE 
+FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR 
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+DEALINGS IN THE SOFTWARE.
+ */
+
+/*
+ * CipherBenchmark
+ * The crypto stage of the pipeline in both negotiable modes, as messages per
+ * second on one core: legacy AES through a pre-initialized CipherContext, and
+ * AES-GCM through a SessionCipher. A round trip is one message sealed by its
+ * sender and opened by its receiver. encrypt and decrypt are the original
+ * baseline, Cipher.init plus doFinal for every message.
+ */
+
+package io.chatserver;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CipherBenchmark {
+    @Param({"16", "256", "4096"})
+    int payloadSize;
+
+    private Cipher cipher;
+    private SecretKeySpec key;
+    private CipherContext crypto;
+    private SessionCipher client;
+    private SessionCipher server;
+    private byte[] plaintext;
+    private byte[] ciphertext;
+    private byte[] output;
+    private ByteBuffer opened;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        cipher = Cipher.getInstance("AES");
+        key = new SecretKeySpec(CipherContext.SHARED_KEY, "AES");
+        crypto = new CipherContext();
+        byte[] clientNonce = SessionCipher.newNonce();
+        byte[] serverNonce = SessionCipher.newNonce();
+        client = new SessionCipher(clientNonce, serverNonce, false);
+        server = new SessionCipher(clientNonce, serverNonce, true);
+        plaintext = Payloads.bytes(payloadSize);
+        ciphertext = crypto.encryptor.doFinal(plaintext);
+        output = new byte[ciphertext.length + 16];
+        opened = ByteBuffer.allocate(payloadSize);
+    }
+
+    @Benchmark
+    public byte[] encrypt() throws GeneralSecurityException {
+        cipher.init(Cipher.ENCRYPT_MODE, key);
+        return cipher.doFinal(plaintext);
+    }
+
+    @Benchmark
+    public byte[] decrypt() throws GeneralSecurityException {
+        cipher.init(Cipher.DECRYPT_MODE, key);
+        return cipher.doFinal(ciphertext);
+    }
+
+    @Benchmark
+    public int legacyEncrypt() throws GeneralSecurityException {
+        return crypto.encryptor.doFinal(plaintext, 0, plaintext.length, output);
+    }
+
+    @Benchmark
+    public int legacyDecrypt() throws GeneralSecurityException {
+        return crypto.decryptor.doFinal(ciphertext, 0, ciphertext.length, output);
+    }
+
+    @Benchmark
+    public int legacyRoundTrip() throws GeneralSecurityException {
+        int length = crypto.encryptor.doFinal(plaintext, 0, plaintext.length, output);
+        return crypto.decryptor.doFinal(output, 0, length, output);
+    }
+
+    @Benchmark
+    public ByteBuffer gcmSeal() throws GeneralSecurityException {
+        return server.seal(plaintext);
+    }
+
+    @Benchmark
+    public ByteBuffer gcmRoundTrip() throws GeneralSecurityException {
+        ByteBuffer sealed = client.seal(plaintext);
+        sealed.position(4);
+        opened.clear();
+        server.open(sealed, opened);
+        return opened;
+    }
+}
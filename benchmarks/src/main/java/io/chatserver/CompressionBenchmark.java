@@ -0,0 +1,86 @@
+/*
+ * The MIT License (MIT)
+Copyright © 2023 <copyright holders>
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this 
+software and associated documentation files (the “Software”), to deal in the Software 
+without restriction, including without limitation the rights to use, copy, modify, merge, 
+publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons 
+to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies 
+or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR 
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE 
+FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR 
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+DEALINGS IN THE SOFTWARE.
+ */
+
+/*
+ * CompressionBenchmark
+ * The cost of compressing a frame body for fan-out and of inflating one a
+ * client sent, for chat text and for pasted Base64 images. Deflaters come
+ * from the server's pool, so the numbers include the reset between messages.
+ * CompressionReport prints the bytes on the wire for the same payloads.
+ */
+
+package io.chatserver;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CompressionBenchmark {
+    @Param({"chat", "base64"})
+    String kind;
+
+    @Param({"256", "1024", "4096", "65536"})
+    int payloadSize;
+
+    private final Frame frame = new Frame();
+    private byte[] body;
+    private byte[] compressed;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException, ProtocolException {
+        Compression.threshold = 0;
+        body = CompressionReport.message(kind, payloadSize).body(FrameCodec.VERSION);
+        compressed = Compression.compress(ByteBuffer.wrap(body));
+        if (compressed == null) {
+            throw new IllegalStateException(kind + " payload of " + payloadSize + " bytes does not compress");
+        }
+    }
+
+    @Benchmark
+    public byte[] compress() {
+        return Compression.compress(ByteBuffer.wrap(body));
+    }
+
+    @Benchmark
+    public ByteBuffer inflate() throws IOException {
+        return Compression.inflate(ByteBuffer.wrap(compressed), frame);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * The MIT License (MIT)
+Copyright © 2023 <copyright holders>
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this 
+software and associated documentation files (the “Software”), to deal in the Software 
+without restriction, including without limitation the rights to use, copy, modify, merge, 
+publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons 
+to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies 
+or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR 
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE 
+FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR 
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+DEALINGS IN THE SOFTWARE.
+ */
+
+/*
+ * CompressionReport
+ * Bytes on the wire for one delivered message, by payload kind and size: as
+ * a legacy Base64 line, as a binary frame, and as a compressed binary frame.
+ * Frames are counted with AES-GCM framing (length, body and tag); run
+ * CompressionBenchmark for the CPU cost of the same payloads.
+ *
+ *   mvn -B package
+ *   java -cp benchmarks/target/benchmarks.jar io.chatserver.CompressionReport
+ */
+
+package io.chatserver;
+
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+public class CompressionReport {
+    private static final int[] SIZES = {64, 256, 1024, 4096, 16384, 65536};
+
+    public static void main(String[] args) throws GeneralSecurityException, ProtocolException {
+        Compression.threshold = 0;
+        System.out.println(String.format("%-7s %8s %10s %10s %12s %7s",
+                "kind", "payload", "line", "frame", "compressed", "saved"));
+        for (String kind : new String[] {"chat", "base64"}) {
+            for (int size : SIZES) {
+                OutboundMessage message = message(kind, size);
+                int line = message.encoded(0).length;
+                int frame = 4 + message.body(FrameCodec.VERSION).length + SessionCipher.TAG_LENGTH;
+                int compressed = 4 + message.body(FrameCodec.VERSION, true).length + SessionCipher.TAG_LENGTH;
+                System.out.println(String.format("%-7s %8d %10d %10d %12d %6.1f%%",
+                        kind, size, line, frame, compressed, 100.0 * (frame - compressed) / frame));
+            }
+        }
+    }
+
+    // A global message as the server fans it out
+    static OutboundMessage message(String kind, int size) throws GeneralSecurityException, ProtocolException {
+        Frame origin = new Frame();
+        FrameCodec.decodeLine(Payloads.legacyLine(0), origin);
+        byte[] payload = Payloads.payload(kind, size).getBytes(StandardCharsets.UTF_8);
+        OutboundMessage message = new OutboundMessage(FrameCodec.DELIVER, origin, null, payload, new CipherContext());
+        message.sequence = 1;
+        return message;
+    }
+}
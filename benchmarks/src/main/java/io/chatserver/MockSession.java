@@ -0,0 +1,50 @@
+/*
+ * The MIT License (MIT)
+Copyright © 2023 <copyright holders>
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this 
+software and associated documentation files (the “Software”), to deal in the Software 
+without restriction, including without limitation the rights to use, copy, modify, merge, 
+publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons 
+to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies 
+or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR 
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE 
+FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR 
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+DEALINGS IN THE SOFTWARE.
+ */
+
+/*
+ * MockSession
+ * A session with no socket. Queued messages are taken off the queue at once,
+ * as if an idle writer had sent them, so fan-out cost is measured without
+ * any network I/O.
+ */
+
+package io.chatserver;
+
+final class MockSession extends Session {
+    MockSession(int wireVersion) {
+        super(16, SlowConsumerPolicy.DROP_OLDEST);
+        version = wireVersion;
+    }
+
+    @Override
+    protected void messageQueued() {
+        outbound.poll();
+    }
+
+    @Override
+    void close() {
+    }
+
+    @Override
+    String remoteAddress() {
+        return "mock";
+    }
+}
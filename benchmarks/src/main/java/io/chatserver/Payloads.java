@@ -0,0 +1,91 @@
+/*
+ * The MIT License (MIT)
+Copyright © 2023 <copyright holders>
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this 
+software and associated documentation files (the “Software”), to deal in the Software 
+without restriction, including without limitation the rights to use, copy, modify, merge, 
+publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons 
+to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies 
+or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR 
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE 
+FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR 
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+DEALINGS IN THE SOFTWARE.
+ */
+
+/*
+ * Payloads
+ * Test data shared by the benchmarks: random message text of a given size
+ * and the legacy request line that carries it, plus the kinds of payload
+ * that compression is meant for.
+ */
+
+package io.chatserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+final class Payloads {
+    static final String CLIENT_ID = "3f2c9a1e-7b4d-4c55-9e0a-1d2b3c4d5e6f";
+    static final String CLIENT_IP = "192.168.0.10";
+    private static final String[] WORDS = (
+            "the you I to a and is it that of in for me what have be are on this my not so just with "
+            + "can do we know was like your at but if all will get about how there when see now out "
+            + "today tomorrow tonight later message chat photo call back home work school meeting "
+            + "okay yes no thanks please sorry great good love haha lol sure maybe really"
+    ).split(" ");
+
+    private Payloads() {
+    }
+
+    // Printable ASCII without commas, so legacy lines keep their field layout
+    static String text(int size) {
+        Random random = new Random(size);
+        char[] chars = new char[size];
+        for (int i = 0; i < size; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+
+    static byte[] bytes(int size) {
+        return text(size).getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Chat-like text: common words, as in a long pasted message
+    static String chatText(int size) {
+        Random random = new Random(size);
+        StringBuilder text = new StringBuilder(size + 16);
+        while (text.length() < size) {
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(12) == 0 ? ". " : " ");
+        }
+        text.setLength(size);
+        return text.toString();
+    }
+
+    // A pasted JPEG as a data URI; the image bytes themselves are already compressed
+    static String base64Image(int size) {
+        Random random = new Random(size);
+        byte[] image = new byte[size * 3 / 4];
+        random.nextBytes(image);
+        String text = "data:image/jpeg;base64,/9j/4AAQSkZJRgABAQAAAQABAAD/" + Base64.getEncoder().encodeToString(image);
+        return text.substring(0, size);
+    }
+
+    // "chat" or "base64"
+    static String payload(String kind, int size) {
+        return kind.equals("base64") ? base64Image(size) : chatText(size);
+    }
+
+    // Decrypted legacy request: "method,timestamp,ip,clientId,message"
+    static String legacyLine(int size) {
+        return "SendMessage,2023-10-15 00:00:00," + CLIENT_IP + "," + CLIENT_ID + "," + text(size);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * The MIT License (MIT)
+Copyright © 2023 <copyright holders>
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this 
+software and associated documentation files (the “Software”), to deal in the Software 
+without restriction, including without limitation the rights to use, copy, modify, merge, 
+publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons 
+to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies 
+or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR 
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE 
+FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR 
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+DEALINGS IN THE SOFTWARE.
+ */
+
+/*
+ * PipelineBenchmark
+ * One request end to end, minus the socket: decrypt and parse it, then
+ * handle it, which encrypts the reply and fans it out to N clients. This is
+ * the baseline to compare engines and protocol options against.
+ */
+
+package io.chatserver;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PipelineBenchmark {
+    @Param({"16", "256", "4096"})
+    int payloadSize;
+
+    @Param({"1", "100", "1000"})
+    int clients;
+
+    private final List<Session> sessions = new ArrayList<>();
+    private final Frame frame = new Frame();
+    private Session legacySender;
+    private Session binarySender;
+    private CipherContext crypto;
+    private String encryptedLine;
+    private byte[] encryptedFrame;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException, ProtocolException {
+        crypto = new CipherContext();
+        String line = Payloads.legacyLine(payloadSize);
+        encryptedLine = Base64.getEncoder().encodeToString(crypto.encryptor.doFinal(line.getBytes(StandardCharsets.UTF_8)));
+
+        // The same request as a version 2 frame body
+        FrameCodec.decodeLine(line, frame);
+        byte[] address = {(byte) 192, (byte) 168, 0, 10};
+        ByteBuffer body = ByteBuffer.allocate(FrameCodec.bodyLength(FrameCodec.VERSION, frame.clientIdBytes, address, null, frame.payload));
+        FrameCodec.encode(body, FrameCodec.VERSION, FrameCodec.SEND_MESSAGE, System.currentTimeMillis(), 0,
+                frame.clientIdBytes, address, null, frame.payload);
+        encryptedFrame = crypto.encryptor.doFinal(body.array());
+
+        // Half of the other clients use each wire format
+        for (int i = 0; i < clients; i++) {
+            Session session = new MockSession(i % 2 == 0 ? 0 : FrameCodec.VERSION);
+            sessions.add(session);
+            ChatServer.addClient(session);
+        }
+        legacySender = new MockSession(0);
+        binarySender = new MockSession(FrameCodec.VERSION);
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (Session session : sessions) {
+            ChatServer.removeClient(session);
+        }
+        sessions.clear();
+        ChatServer.removeClient(legacySender);
+        ChatServer.removeClient(binarySender);
+    }
+
+    @Benchmark
+    public Frame legacyLine() throws GeneralSecurityException, ProtocolException {
+        ChatServer.decodeLine(encryptedLine, crypto, frame);
+        ChatServer.handleFrame(legacySender, frame, crypto);
+        return frame;
+    }
+
+    @Benchmark
+    public Frame binaryFrame() throws GeneralSecurityException, IOException {
+        ChatServer.decodeFrame(ByteBuffer.wrap(encryptedFrame), crypto, null, frame, FrameCodec.VERSION);
+        ChatServer.handleFrame(binarySender, frame, crypto);
+        return frame;
+    }
+}
@@ -39,20 +39,44 @@ import android.os.Looper; // For checking the current thread and looper
 import com.google.appinventor.components.annotations.*;
 import com.google.appinventor.components.runtime.*;
 import com.google.appinventor.components.common.ComponentCategory;
+import com.google.appinventor.components.common.PropertyTypeConstants;
+import com.google.appinventor.components.runtime.util.YailList;
 
 // Java I/O and networking imports
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 // Imports for encryption and decryption
 import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
 import java.security.Key;
+import java.security.SecureRandom;
 
 // Utility imports for generating unique identifiers and formatting dates
 import java.util.UUID;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
+// Queue feeding the sender thread
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Compression of large frame bodies
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
 // For encoding and decoding messages in Base64 format
 import java.util.Base64;
 
@@ -65,22 +89,133 @@ import java.util.Base64;
 @SimpleObject(external = true)
 public class ChatClient extends AndroidNonvisibleComponent {
 	// Declare client socket and I/O for network communication
-    private Socket socket;
+    private volatile Socket socket;
     private PrintWriter out;
     private BufferedReader in;
-    private boolean isConnected = false; // To track the connection status
+    private DataOutputStream frameOut; // Used instead of out/in when binary frames were negotiated
+    private DataInputStream frameIn;
+    private volatile boolean useFrames = false;
+    private volatile int frameVersion = 0;
+    private boolean binaryFraming = true;
+    private volatile boolean isConnected = false; // To track the connection status
+    
+    // Binary framing handshake: magic "\xC7CHT", version, feature flags. With AES-GCM the server
+    // follows its reply with a nonce and the client answers with its own. The feature flags are
+    // filled in per connection from the properties.
+    private static final int FEATURE_HEARTBEAT = 1;
+    private static final int FEATURE_GCM = 2;
+    private static final int FEATURE_DEFLATE = 4;
+    private static final byte[] HELLO = {(byte) 0xC7, 'C', 'H', 'T', 2, 0, 0};
+    private static final int NONCE_LENGTH = 16;
+    private static final int HELLO_TIMEOUT_MS = 5000;
+    private static final int MAX_FRAME_LENGTH = 1 << 20;
+    
+    // Binary frame types (the server answers every message with a DELIVER frame)
+    private static final byte SEND_MESSAGE = 1;
+    private static final byte SEND_MESSAGE_WITH_DETAILS = 2;
+    private static final byte JOIN_ROOM = 3;
+    private static final byte LEAVE_ROOM = 4;
+    private static final byte SEND_ROOM_MESSAGE = 5;
+    private static final byte SEND_DIRECT_MESSAGE = 6;
+    private static final byte PRESENCE_QUERY = 7;
+    private static final byte ONLINE_COUNT_QUERY = 8;
+    private static final byte IDENTIFY = 9;
+    private static final byte HISTORY_QUERY = 10;
+    private static final byte PING = 11;
+    private static final byte DELIVER = 16;
+    private static final byte ROOM_DELIVER = 17;
+    private static final byte DIRECT_DELIVER = 18;
+    private static final byte PRESENCE = 19;
+    private static final byte ONLINE_COUNT = 20;
+    private static final byte HISTORY_END = 21;
+    private static final byte PONG = 22;
+    private static final int COMPRESSED = 0x80; // On the type byte of a deflated body
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
     
     // Constants for the encryption algorithm and key
     private static final String ALGORITHM = "AES";
     private static final byte[] KEY = "MySuperSecretKey".getBytes();
     
-    // Ciphers for encryption and decryption
+    // Ciphers for EncryptMessage and DecryptMessage, which may be called from any thread.
+    // Connections have their own FrameCipher.
     private Cipher encryptCipher;
     private Cipher decryptCipher;
     
-    // Unique client ID and timestamp formatter
+    // AES-GCM with a key per connection, when both this device and the server support it
+    private volatile boolean authenticatedEncryption = true;
+    private final boolean gcmAvailable = FrameCipher.gcmAvailable();
+    private FrameCipher frameCipher; // Of the connection being opened
+    
+    // Deflate for frame bodies above the threshold, when the server accepts compressed frames
+    private volatile boolean compression = true;
+    private volatile int compressionThreshold = 256;
+    private volatile boolean compressFrames = false;
+    
+    // Unique client ID and timestamp formatter; SimpleDateFormat is not thread-safe, so each thread gets its own
     private final String clientId = UUID.randomUUID().toString();
-    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    private final byte[] clientIdBytes = clientId.getBytes(UTF_8);
+    private static final ThreadLocal<SimpleDateFormat> DATE_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        }
+    };
+    
+    // Writes every outgoing message of the current connection, in the order they were sent
+    private volatile OutgoingMessagesSender sender;
+    
+    // The local address never changes while connected, so it is looked up once per connection
+    private byte[] localAddress;
+    private String localAddressText;
+    
+    // Every event goes through one Handler on the main looper
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
+    
+    // Optional batching of MessageReceived: messages collect here until the window ends or the
+    // batch is full, then reach the UI thread in a single post. Guarded by the list itself.
+    private volatile boolean batchMessages = false;
+    private volatile int batchWindowMillis = 100;
+    private volatile int batchMaxMessages = 50;
+    private final List<String> batch = new ArrayList<String>();
+    private boolean batchPosted; // a delivery is waiting in the Handler
+    private boolean batchDue; // ...and it runs as soon as the UI thread gets to it
+    private final Runnable batchDelivery = new Runnable() {
+        @Override
+        public void run() {
+            deliverBatch();
+        }
+    };
+    
+    // Heartbeats: while the server agreed to them, ping every interval and treat a connection
+    // that stays silent for the idle timeout as dead
+    private volatile boolean heartbeats = false;
+    private volatile int heartbeatIntervalSeconds = 20;
+    private volatile int idleTimeoutSeconds = 60;
+    
+    // Automatic reconnection after a lost connection, with exponential backoff and full jitter
+    // so a restarted server is not hit by every client at once
+    private static final long RECONNECT_BASE_DELAY_MS = 1000;
+    private volatile boolean autoReconnect = true;
+    private volatile int maxReconnectDelaySeconds = 60;
+    private volatile boolean wantConnected = false; // Cleared by DisconnectFromServer
+    // Moved on by ConnectToServer and DisconnectFromServer, so reconnection attempts started
+    // for an earlier connection give up instead of opening a second one
+    private volatile int generation = 0;
+    // Held while a connection is published or closed, so a disconnect cannot fall in between
+    private final Object connectionLock = new Object();
+    private String host;
+    private int port;
+    
+    // Rooms joined through this component, joined again after a reconnect
+    private final Set<String> joinedRooms = Collections.synchronizedSet(new LinkedHashSet<String>());
+    
+    // Whether a RequestHistory replay is still running; a reconnect then resumes it from the cursor
+    private volatile boolean replaying = false;
+    
+    // Highest message sequence received, and where the next history request starts.
+    // The cursor only moves with replayed history, so live messages never hide a gap.
+    private volatile long lastSequence = 0;
+    private volatile long historyCursor = 0;
     
     // Constructor for the chat client
     public ChatClient(ComponentContainer container) {
@@ -108,34 +243,158 @@ public class ChatClient extends AndroidNonvisibleComponent {
         } else {
             // Use the Handler associated with the main looper to post the Runnable
         	// Otherwise, post the event to the handler of the main looper
-            new Handler(Looper.getMainLooper()).post(eventRunner);
+            uiHandler.post(eventRunner);
         }
     }
     
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_BOOLEAN, defaultValue = "True")
+    @SimpleProperty(description = "Use the compact binary frame format when the server supports it. "
+        + "Older servers are detected automatically and the text format is used instead.")
+    public void BinaryFraming(boolean enabled) {
+        binaryFraming = enabled;
+    }
+
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR)
+    public boolean BinaryFraming() {
+        return binaryFraming;
+    }
+    
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_BOOLEAN, defaultValue = "True")
+    @SimpleProperty(description = "With the binary frame format, encrypt with AES-GCM under a key of this connection's "
+        + "own when the server supports it, so tampered or replayed frames are rejected")
+    public void AuthenticatedEncryption(boolean enabled) {
+        authenticatedEncryption = enabled;
+    }
+
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR)
+    public boolean AuthenticatedEncryption() {
+        return authenticatedEncryption;
+    }
+    
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_BOOLEAN, defaultValue = "True")
+    @SimpleProperty(description = "With the binary frame format, compress long messages such as pasted text or "
+        + "Base64 images when the server supports it")
+    public void Compression(boolean enabled) {
+        compression = enabled;
+    }
+
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR)
+    public boolean Compression() {
+        return compression;
+    }
+    
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER, defaultValue = "256")
+    @SimpleProperty(description = "With Compression, messages shorter than this many bytes are sent as they are")
+    public void CompressionThreshold(int bytes) {
+        compressionThreshold = bytes;
+    }
+
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR)
+    public int CompressionThreshold() {
+        return compressionThreshold;
+    }
+    
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_BOOLEAN, defaultValue = "False")
+    @SimpleProperty(description = "Deliver global messages in groups through MessagesReceived instead of one "
+        + "MessageReceived event each. Use it for busy chats, so the UI is not flooded with events")
+    public void BatchMessages(boolean enabled) {
+        batchMessages = enabled;
+    }
+    
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR)
+    public boolean BatchMessages() {
+        return batchMessages;
+    }
+    
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER, defaultValue = "100")
+    @SimpleProperty(description = "With BatchMessages, the longest time in milliseconds a message waits for others to join its batch")
+    public void BatchWindowMillis(int millis) {
+        batchWindowMillis = Math.max(0, millis);
+    }
+    
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR)
+    public int BatchWindowMillis() {
+        return batchWindowMillis;
+    }
+    
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER, defaultValue = "50")
+    @SimpleProperty(description = "With BatchMessages, the most messages in one MessagesReceived event. "
+        + "A full batch is delivered without waiting for the window to end")
+    public void BatchMaxMessages(int count) {
+        batchMaxMessages = Math.max(1, count);
+    }
+    
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR)
+    public int BatchMaxMessages() {
+        return batchMaxMessages;
+    }
+    
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER, defaultValue = "20")
+    @SimpleProperty(description = "Seconds between heartbeat pings, so the server and the client notice a dead "
+        + "connection. Keep it below the server's idle timeout. 0 turns heartbeats off. Takes effect on the next connection")
+    public void HeartbeatIntervalSeconds(int seconds) {
+        heartbeatIntervalSeconds = Math.max(0, seconds);
+    }
+    
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR)
+    public int HeartbeatIntervalSeconds() {
+        return heartbeatIntervalSeconds;
+    }
+    
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER, defaultValue = "60")
+    @SimpleProperty(description = "With heartbeats, a connection that receives nothing for this many seconds is "
+        + "treated as lost. 0 waits forever. Takes effect on the next connection")
+    public void IdleTimeoutSeconds(int seconds) {
+        idleTimeoutSeconds = Math.max(0, seconds);
+    }
+    
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR)
+    public int IdleTimeoutSeconds() {
+        return idleTimeoutSeconds;
+    }
+    
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_BOOLEAN, defaultValue = "True")
+    @SimpleProperty(description = "Reconnect by itself when the connection is lost. Rooms are joined again and, "
+        + "once messages with sequence numbers were received, the missed ones are requested from the server's history")
+    public void AutoReconnect(boolean enabled) {
+        autoReconnect = enabled;
+    }
+    
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR)
+    public boolean AutoReconnect() {
+        return autoReconnect;
+    }
+    
+    @DesignerProperty(editorType = PropertyTypeConstants.PROPERTY_TYPE_NON_NEGATIVE_INTEGER, defaultValue = "60")
+    @SimpleProperty(description = "The longest wait in seconds between two reconnection attempts")
+    public void MaxReconnectDelaySeconds(int seconds) {
+        maxReconnectDelaySeconds = Math.max(1, seconds);
+    }
+    
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR)
+    public int MaxReconnectDelaySeconds() {
+        return maxReconnectDelaySeconds;
+    }
+    
     // Method to connect to the chat server
     @SimpleFunction(description = "Connects to the chat server")
     public void ConnectToServer(final String host, final int port) {
+        final int connectionGeneration;
+        synchronized (connectionLock) {
+            // An open connection would leave its listener reading next to the new one
+            closeConnection();
+            this.host = host;
+            this.port = port;
+            wantConnected = true;
+            connectionGeneration = ++generation;
+        }
+        joinedRooms.clear();
         new Thread(new Runnable() {
             @Override
             public void run() {
                 try {
-                    socket = new Socket(host, port); // Establish a new socket connection
-                    out = new PrintWriter(socket.getOutputStream(), true); // Initialize the print writer for output
-                    in = new BufferedReader(new InputStreamReader(socket.getInputStream())); // Initialize the reader for input
-                    isConnected = true; // Update connection status
-
-                    // Trigger Connected event on UI thread
-                    dispatchEventOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            Connected();
-                        }
-                    });
-
-                    // Now start a new thread to listen for incoming messages
-                    // Start a new thread to listen for incoming messages
-                    new Thread(new IncomingMessagesListener()).start();
-                } catch (IOException e) {
+                    connect(false, connectionGeneration);
+                } catch (Exception e) {
                 	// Handle exceptions and trigger the ErrorOccurred event on the UI thread
                 	final String errorMessage = e.getMessage();
                     // Trigger ErrorOccurred event on UI thread
@@ -150,10 +409,523 @@ public class ChatClient extends AndroidNonvisibleComponent {
         }).start(); // Start the connection thread
     }
     
+    // Open a connection and start its sender and listener. A resumed connection joins the
+    // rooms again and asks for the messages sent while it was away. The socket is only
+    // published once the handshake is done; a failed handshake closes it.
+    private void connect(boolean resume, int connectionGeneration) throws Exception {
+        Socket connection = new Socket(host, port); // Establish a new socket connection
+        int version = 0;
+        try {
+            connection.setKeepAlive(true);
+            heartbeats = false;
+            compressFrames = false;
+            frameCipher = null;
+            if (binaryFraming) {
+                version = negotiateFrames(connection);
+                if (version < 0) {
+                    // Older servers do not answer the hello, so reconnect with the text format
+                    connection.close();
+                    connection = new Socket(host, port);
+                    connection.setKeepAlive(true);
+                }
+            }
+            if (frameCipher == null) {
+                frameCipher = new FrameCipher();
+            }
+            if (heartbeats && idleTimeoutSeconds > 0) {
+                connection.setSoTimeout(idleTimeoutSeconds * 1000);
+            }
+        } catch (Exception e) {
+            connection.close();
+            throw e;
+        }
+        
+        OutgoingMessagesSender connectionSender;
+        IncomingMessagesListener listener;
+        synchronized (connectionLock) {
+            // DisconnectFromServer, or another ConnectToServer, may have come in during the handshake
+            if (!wantConnected || connectionGeneration != generation) {
+                connection.close();
+                return;
+            }
+            socket = connection;
+            frameVersion = Math.max(version, 0);
+            useFrames = version >= 1;
+            if (!replaying) {
+                historyCursor = lastSequence;
+            }
+            if (useFrames) {
+                frameOut = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+                frameIn = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+            } else {
+                // Buffered without autoflush: the sender flushes once per batch
+                out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(connection.getOutputStream())));
+                in = new BufferedReader(new InputStreamReader(connection.getInputStream())); // Initialize the reader for input
+            }
+            localAddress = connection.getLocalAddress().getAddress();
+            localAddressText = connection.getLocalAddress().getHostAddress();
+            connectionSender = new OutgoingMessagesSender();
+            sender = connectionSender;
+            listener = new IncomingMessagesListener();
+            new Thread(connectionSender).start();
+            isConnected = true; // Update connection status
+        }
+        
+        // Register our id right away so direct messages can reach us before we send anything
+        if (version >= 1) {
+            connectionSender.queue(new OutgoingMessage("Identify", IDENTIFY, null, ""));
+        }
+        if (resume) {
+            synchronized (joinedRooms) {
+                for (String room : joinedRooms) {
+                    connectionSender.queue(new OutgoingMessage("JoinRoom", JOIN_ROOM, room, ""));
+                }
+            }
+            if (version >= 2 && (replaying || lastSequence > 0)) {
+                replaying = true;
+                connectionSender.queue(new OutgoingMessage("RequestHistory", HISTORY_QUERY, null, ""));
+            }
+        }
+
+        // Trigger Connected event on UI thread
+        dispatchEventOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                Connected();
+            }
+        });
+
+        // Now start a new thread to listen for incoming messages
+        new Thread(listener).start();
+    }
+    
+    // Called on the listener thread of a connection that was lost. Wait a random time below a
+    // ceiling that doubles after every failed attempt, so clients cut off together spread out.
+    private void reconnect(int connectionGeneration) {
+        for (int attempt = 1; wantConnected && connectionGeneration == generation; attempt++) {
+            long ceiling = Math.min(TimeUnit.SECONDS.toMillis(maxReconnectDelaySeconds),
+                RECONNECT_BASE_DELAY_MS << Math.min(attempt - 1, 16));
+            long delay = (long) (Math.random() * ceiling);
+            Reconnecting(attempt, delay);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (!wantConnected || connectionGeneration != generation) {
+                return;
+            }
+            try {
+                connect(true, connectionGeneration);
+                return;
+            } catch (Exception e) {
+                Log.w("ChatClient", "Reconnection attempt " + attempt + " failed: " + e.getMessage());
+            }
+        }
+    }
+    
+    // Send the hello and return the version the server picked, or -1 if it did not answer.
+    // When the server agrees to AES-GCM, the nonces are exchanged here too.
+    private int negotiateFrames(Socket connection) throws IOException, GeneralSecurityException {
+        byte[] hello = HELLO.clone();
+        // Only a client that pings may be evicted as idle, so a listen-only client does not offer heartbeats
+        if (heartbeatIntervalSeconds > 0) {
+            hello[6] |= FEATURE_HEARTBEAT;
+        }
+        if (authenticatedEncryption && gcmAvailable) {
+            hello[6] |= FEATURE_GCM;
+        }
+        if (compression) {
+            hello[6] |= FEATURE_DEFLATE;
+        }
+        OutputStream rawOut = connection.getOutputStream();
+        rawOut.write(hello);
+        rawOut.flush();
+        connection.setSoTimeout(HELLO_TIMEOUT_MS);
+        try {
+            DataInputStream rawIn = new DataInputStream(connection.getInputStream());
+            byte[] reply = new byte[HELLO.length];
+            rawIn.readFully(reply);
+            for (int i = 0; i < 4; i++) {
+                if (reply[i] != HELLO[i]) {
+                    return -1;
+                }
+            }
+            heartbeats = heartbeatIntervalSeconds > 0 && (reply[6] & FEATURE_HEARTBEAT) != 0;
+            compressFrames = (reply[6] & hello[6] & FEATURE_DEFLATE) != 0;
+            if ((reply[6] & hello[6] & FEATURE_GCM) != 0) {
+                byte[] serverNonce = new byte[NONCE_LENGTH];
+                rawIn.readFully(serverNonce);
+                byte[] clientNonce = FrameCipher.newNonce();
+                rawOut.write(clientNonce);
+                rawOut.flush();
+                frameCipher = new FrameCipher(clientNonce, serverNonce);
+            }
+            return reply[4] & 0xFF;
+        } catch (SocketTimeoutException e) {
+            return -1;
+        } catch (EOFException e) {
+            return -1;
+        } finally {
+            if (!connection.isClosed()) {
+                connection.setSoTimeout(0);
+            }
+        }
+    }
+    
+    // The ciphers of one connection. Legacy connections use AES with the shared key, initialized
+    // once. AES-GCM connections use a key derived from both nonces and count the frames in each
+    // direction, the counter being the IV, so the server rejects replayed or reordered frames.
+    // The sender seals and the listener opens, each with its own Cipher and reused buffer.
+    private static class FrameCipher {
+        private static final String GCM = "AES/GCM/NoPadding";
+        private static final int TAG_LENGTH = 16;
+        private static final byte[] KEY_LABEL = "chat-gcm".getBytes(UTF_8);
+        private static final SecureRandom RANDOM = new SecureRandom();
+        
+        private final Key key;
+        private final boolean gcm;
+        private final Cipher sealer;
+        private final Cipher opener;
+        private final byte[] sealIv = new byte[12];
+        private final byte[] openIv = new byte[12];
+        private long sealedCount;
+        private long openedCount;
+        private byte[] sealed = new byte[256];
+        private byte[] opened = new byte[256];
+        
+        // Legacy AES with the shared key
+        FrameCipher() throws GeneralSecurityException {
+            key = new SecretKeySpec(KEY, ALGORITHM);
+            gcm = false;
+            sealer = Cipher.getInstance(ALGORITHM);
+            sealer.init(Cipher.ENCRYPT_MODE, key);
+            opener = Cipher.getInstance(ALGORITHM);
+            opener.init(Cipher.DECRYPT_MODE, key);
+        }
+        
+        // AES-GCM under HMAC-SHA256(shared key, "chat-gcm" | client nonce | server nonce)
+        FrameCipher(byte[] clientNonce, byte[] serverNonce) throws GeneralSecurityException {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(KEY, "HmacSHA256"));
+            mac.update(KEY_LABEL);
+            mac.update(clientNonce);
+            mac.update(serverNonce);
+            key = new SecretKeySpec(Arrays.copyOf(mac.doFinal(), 16), ALGORITHM);
+            gcm = true;
+            sealer = Cipher.getInstance(GCM);
+            opener = Cipher.getInstance(GCM);
+            openIv[3] = 1; // The client seals direction 0 and opens direction 1
+        }
+        
+        static boolean gcmAvailable() {
+            try {
+                Cipher.getInstance(GCM);
+                return true;
+            } catch (GeneralSecurityException e) {
+                return false;
+            }
+        }
+        
+        static byte[] newNonce() {
+            byte[] nonce = new byte[NONCE_LENGTH];
+            RANDOM.nextBytes(nonce);
+            return nonce;
+        }
+        
+        // Encrypt the first length bytes into sealed() and return the encrypted length
+        int seal(byte[] plaintext, int length) throws GeneralSecurityException {
+            if (gcm) {
+                sealer.init(Cipher.ENCRYPT_MODE, key, nextIv(sealIv, sealedCount++));
+            }
+            int size = sealer.getOutputSize(length);
+            if (sealed.length < size) {
+                sealed = new byte[Math.max(size, sealed.length * 2)];
+            }
+            return sealer.doFinal(plaintext, 0, length, sealed, 0);
+        }
+        
+        byte[] sealed() {
+            return sealed;
+        }
+        
+        // Decrypt the first length bytes; the result is only valid until the next call
+        ByteBuffer open(byte[] encrypted, int length) throws GeneralSecurityException {
+            if (gcm) {
+                opener.init(Cipher.DECRYPT_MODE, key, nextIv(openIv, openedCount++));
+            }
+            int size = opener.getOutputSize(length);
+            if (opened.length < size) {
+                opened = new byte[Math.max(size, opened.length * 2)];
+            }
+            return ByteBuffer.wrap(opened, 0, opener.doFinal(encrypted, 0, length, opened, 0));
+        }
+        
+        private static GCMParameterSpec nextIv(byte[] iv, long counter) {
+            for (int i = 11; i >= 4; i--) {
+                iv[i] = (byte) counter;
+                counter >>>= 8;
+            }
+            return new GCMParameterSpec(TAG_LENGTH * 8, iv);
+        }
+    }
+    
+    // Deflate for the frame bodies of one direction of a connection. A compressed body keeps its
+    // type byte, with COMPRESSED set, and deflates the rest against a dictionary of common chat
+    // text. Every body is compressed on its own, but the Deflater and buffers are reused.
+    private static class BodyCompression {
+        // Must match the server's Compression.DICTIONARY byte for byte
+        private static final byte[] DICTIONARY = (
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            + "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA////////////////"
+            + "data:image/gif;base64,R0lGODlh" + "data:image/jpeg;base64,/9j/4AAQSkZJRgABAQAAAQABAAD/"
+            + "data:image/png;base64,iVBORw0KGgoAAAANSUhEUgAA"
+            + "{\"type\":\"\",\"text\":\"\",\"name\":\"\",\"id\":\"\",\"time\":\"\"} "
+            + "https://www. .com/ .html?id= "
+            + "Thank you so much! Good morning, good night. How are you doing today? "
+            + "I don't know what you mean, can you tell me more about it? "
+            + "Yes, I think that would be great. No problem, see you later. "
+            + "Please let me know when you are there, and what time it is. "
+            + "The message is in the chat, with the image and the link. "
+            + "that this with have from they will would there their what about which when "
+            + "what was just like it's I'm you're and the for you that is in to of a "
+        ).getBytes(UTF_8);
+        
+        private Deflater deflater;
+        private Inflater inflater;
+        private byte[] output = new byte[1024];
+        
+        // Compress the first length bytes into output() and return the compressed length,
+        // or 0 when compressing does not make the body smaller
+        int deflate(byte[] body, int length) {
+            if (deflater == null) {
+                deflater = new Deflater(Deflater.BEST_SPEED, true);
+            }
+            try {
+                deflater.setDictionary(DICTIONARY);
+                deflater.setInput(body, 1, length - 1);
+                deflater.finish();
+                output[0] = (byte) (body[0] | COMPRESSED);
+                int written = 1;
+                while (!deflater.finished()) {
+                    if (written >= length) {
+                        return 0;
+                    }
+                    if (written == output.length) {
+                        output = Arrays.copyOf(output, output.length * 2);
+                    }
+                    written += deflater.deflate(output, written, output.length - written);
+                }
+                return written < length ? written : 0;
+            } finally {
+                deflater.reset();
+            }
+        }
+        
+        byte[] output() {
+            return output;
+        }
+        
+        // Inflate a compressed body, clearing the flag on its type byte; the result is only
+        // valid until the next call
+        ByteBuffer inflate(ByteBuffer compressed) throws DataFormatException {
+            if (inflater == null) {
+                inflater = new Inflater(true);
+            }
+            try {
+                inflater.setDictionary(DICTIONARY);
+                inflater.setInput(compressed.array(), compressed.position() + 1, compressed.remaining() - 1);
+                output[0] = (byte) (compressed.get(compressed.position()) & ~COMPRESSED);
+                int written = 1;
+                while (!inflater.finished()) {
+                    if (written == output.length) {
+                        if (output.length >= MAX_FRAME_LENGTH) {
+                            throw new DataFormatException("Compressed body exceeds " + MAX_FRAME_LENGTH + " bytes");
+                        }
+                        output = Arrays.copyOf(output, Math.min(output.length * 2, MAX_FRAME_LENGTH));
+                    }
+                    int inflated = inflater.inflate(output, written, output.length - written);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new DataFormatException("Truncated compressed body");
+                    }
+                    written += inflated;
+                }
+                return ByteBuffer.wrap(output, 0, written);
+            } finally {
+                inflater.reset();
+            }
+        }
+    }
+    
+    // A message waiting for the sender thread. The timestamp is taken when the app sends
+    // it; room is the room name or recipient id, and null unless the message is addressed to one.
+    private static class OutgoingMessage {
+        final String method;
+        final byte type;
+        final String room;
+        final String message;
+        final long timestamp = System.currentTimeMillis();
+        
+        OutgoingMessage(String method, byte type, String room, String message) {
+            this.method = method;
+            this.type = type;
+            this.room = room;
+            this.message = message;
+        }
+    }
+    
+    // One long-lived sender per connection. It takes everything queued since its last write,
+    // writes it in order and flushes once, so a burst of messages costs one syscall.
+    // The connection's streams and format are copied in when it is created, so a reconnect
+    // that replaces them cannot switch this sender over halfway through a batch.
+    private class OutgoingMessagesSender implements Runnable {
+        private final BlockingQueue<OutgoingMessage> pending = new LinkedBlockingQueue<OutgoingMessage>();
+        private final List<OutgoingMessage> batch = new ArrayList<OutgoingMessage>();
+        private final FrameCipher cipher = frameCipher;
+        private final BodyCompression compressor = compressFrames ? new BodyCompression() : null;
+        private final Socket connection = socket;
+        private final boolean frames = useFrames;
+        private final int version = frameVersion;
+        private final DataOutputStream frameWriter = frameOut;
+        private final PrintWriter lineWriter = out;
+        private final byte[] address = localAddress;
+        private final String addressText = localAddressText;
+        private final long heartbeatNanos = heartbeats ? TimeUnit.SECONDS.toNanos(heartbeatIntervalSeconds) : 0;
+        private ByteBuffer body = ByteBuffer.allocate(256);
+        private volatile Thread thread;
+        private volatile boolean stopped;
+        
+        void queue(OutgoingMessage message) {
+            pending.add(message);
+        }
+        
+        boolean isStopped() {
+            return stopped;
+        }
+        
+        void stop() {
+            stopped = true;
+            Thread running = thread;
+            if (running != null) {
+                running.interrupt();
+            }
+        }
+        
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            long nextPing = System.nanoTime() + heartbeatNanos;
+            try {
+                while (!stopped) {
+                    // Without heartbeats, wait for the next message; with them, wake up for the next ping too
+                    OutgoingMessage next;
+                    if (heartbeatNanos == 0) {
+                        next = pending.take();
+                    } else {
+                        next = pending.poll(nextPing - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    }
+                    if (next != null) {
+                        batch.add(next);
+                        pending.drainTo(batch);
+                    }
+                    if (heartbeatNanos > 0 && System.nanoTime() - nextPing >= 0) {
+                        batch.add(new OutgoingMessage("Ping", PING, null, ""));
+                        nextPing = System.nanoTime() + heartbeatNanos;
+                    }
+                    for (OutgoingMessage message : batch) {
+                        write(message);
+                    }
+                    batch.clear();
+                    if (frames) {
+                        frameWriter.flush();
+                    } else if (lineWriter.checkError()) { // PrintWriter reports write errors only here
+                        throw new IOException("Could not send message");
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Disconnected
+            } catch (Exception e) {
+                stopped = true;
+                if (isConnected) {
+                    Log.e("ChatClient", "Send Message failed: " + e.getMessage(), e);
+                    if (!autoReconnect) {
+                        ErrorOccurred(e.getMessage());
+                    }
+                }
+                // The listener sees the closed socket and reconnects or reports the disconnection
+                try {
+                    connection.close();
+                } catch (IOException ignored) {
+                    // Already closed
+                }
+            }
+        }
+        
+        // Write one message in whichever format was negotiated, without flushing
+        private void write(OutgoingMessage message) throws Exception {
+            if (frames) {
+                // u8 type | i64 timestamp | [i64 sequence] | u8 idLength | id | u8 addressLength | address
+                // | [u8 roomLength | room] | payload; the sequence is only in version 2 frames
+                byte[] roomBytes = message.room == null ? null : message.room.getBytes(UTF_8);
+                byte[] payload = message.message.getBytes(UTF_8);
+                int roomLength = roomBytes == null ? 0 : 1 + roomBytes.length;
+                int sequenceLength = version >= 2 ? 8 : 0;
+                int length = 1 + 8 + sequenceLength + 1 + clientIdBytes.length + 1 + address.length + roomLength + payload.length;
+                if (body.capacity() < length) {
+                    body = ByteBuffer.allocate(Math.max(length, body.capacity() * 2));
+                }
+                body.clear();
+                body.put(message.type).putLong(message.timestamp);
+                if (version >= 2) {
+                    body.putLong(historyCursor);
+                }
+                body.put((byte) clientIdBytes.length).put(clientIdBytes);
+                body.put((byte) address.length).put(address);
+                if (roomBytes != null) {
+                    body.put((byte) roomBytes.length).put(roomBytes);
+                }
+                body.put(payload);
+                
+                byte[] plaintext = body.array();
+                int plaintextLength = body.position();
+                if (compressor != null && plaintextLength >= compressionThreshold) {
+                    int compressedLength = compressor.deflate(plaintext, plaintextLength);
+                    if (compressedLength > 0) {
+                        plaintext = compressor.output();
+                        plaintextLength = compressedLength;
+                    }
+                }
+                int encryptedLength = cipher.seal(plaintext, plaintextLength);
+                frameWriter.writeInt(encryptedLength);
+                frameWriter.write(cipher.sealed(), 0, encryptedLength);
+                return;
+            }
+            
+            // The text format carries the room or recipient in the message field: "target" or "target,message"
+            String text = message.message;
+            if (message.type == SEND_ROOM_MESSAGE || message.type == SEND_DIRECT_MESSAGE) {
+                text = message.room + "," + text;
+            } else if (message.room != null) {
+                text = message.room;
+            }
+            String timestamp = DATE_FORMAT.get().format(new Date(message.timestamp));
+            String messageWithDetails = message.method + "," + timestamp + "," + addressText + "," + clientId + "," + text;
+            
+            byte[] plaintext = messageWithDetails.getBytes(UTF_8);
+            int length = cipher.seal(plaintext, plaintext.length);
+            String encryptedMessage = Base64.getEncoder().encodeToString(Arrays.copyOf(cipher.sealed(), length));
+            Log.i("ChatClient", "Sending message: " + encryptedMessage);
+            lineWriter.println(encryptedMessage);
+        }
+    }
+    
     @SimpleFunction(description = "Decrypts a message")
     public String DecryptMessage(String encryptedMessage) {
         try {
-            byte[] decryptedBytes = decryptCipher.doFinal(Base64.getDecoder().decode(encryptedMessage));
+            byte[] decryptedBytes;
+            synchronized (decryptCipher) {
+                decryptedBytes = decryptCipher.doFinal(Base64.getDecoder().decode(encryptedMessage));
+            }
             return new String(decryptedBytes, "UTF-8");
         } catch (Exception e) {
             e.printStackTrace();
@@ -164,7 +936,10 @@ public class ChatClient extends AndroidNonvisibleComponent {
     @SimpleFunction(description = "Encrypts a message")
     public String EncryptMessage(String message) {
         try {
-            byte[] encryptedBytes = encryptCipher.doFinal(message.getBytes("UTF-8"));
+            byte[] encryptedBytes;
+            synchronized (encryptCipher) {
+                encryptedBytes = encryptCipher.doFinal(message.getBytes("UTF-8"));
+            }
             return Base64.getEncoder().encodeToString(encryptedBytes);
         } catch (Exception e) {
             e.printStackTrace();
@@ -172,113 +947,367 @@ public class ChatClient extends AndroidNonvisibleComponent {
         }
     }
 
-    @SimpleFunction(description = "Sends a message to the chat server")
-    public void SendMessage(final String message) {
-        if (!isConnected || out == null) {
+    // Check the connection and hand the message to the sender thread
+    private void sendInBackground(String method, byte type, String room, String message) {
+        OutgoingMessagesSender current = sender;
+        if (!isConnected || current == null || current.isStopped()) {
             String errorMsg = "Client is not connected to the server.";
             Log.e("ChatClient", errorMsg);
             ErrorOccurred(errorMsg);
             return;
         }
+        current.queue(new OutgoingMessage(method, type, room, message));
+    }
+    
+    // Room names and client ids travel in a length-prefixed field and in comma-separated text lines
+    private boolean isValidTarget(String target) {
+        if (target.isEmpty() || target.indexOf(',') >= 0 || target.getBytes(UTF_8).length > 255) {
+            ErrorOccurred("Invalid room or client id: " + target);
+            return false;
+        }
+        return true;
+    }
 
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                	String timestamp = dateFormat.format(new Date());
-                    String clientIp = socket.getLocalAddress().getHostAddress();
-                    String messageWithDetails = "SendMessage," + timestamp + "," + clientIp + "," + clientId + "," + message;
-                    
-                    final String encryptedMessage = EncryptMessage(messageWithDetails);
-                    if (encryptedMessage == null) {
-                        Log.e("ChatClient", "Encryption returned null");
-                        ErrorOccurred("Encryption error");
-                        return;
-                    }
-
-                    Log.i("ChatClient", "Sending message: " + encryptedMessage);
-                    out.println(encryptedMessage);
-                    out.flush();
-                } catch (Exception e) {
-                    Log.e("ChatClient", "Send Message failed: " + e.getMessage(), e);
-                    ErrorOccurred(e.getMessage());
-                }
-            }
-        }).start();
+    @SimpleFunction(description = "Sends a message to the chat server")
+    public void SendMessage(final String message) {
+        sendInBackground("SendMessage", SEND_MESSAGE, null, message);
     }
 
     
     @SimpleFunction(description = "Sends a message along with date, IP, and unique ID to the chat server")
     public void SendMessageWithDetails(final String message) {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                if (isConnected && out != null) {
-                    try {
-                    	String timestamp = dateFormat.format(new Date());
-                        String clientIp = socket.getLocalAddress().getHostAddress();
-                        String messageWithDetails = "SendMessageWithDetails," + timestamp + "," + clientIp + "," + clientId + "," + message;
-                        
-                        final String encryptedMessage = EncryptMessage(messageWithDetails);
-                        if (encryptedMessage != null) {
-                            Log.i("ChatClient", "Sending message: " + encryptedMessage);
-                            out.println(encryptedMessage);
-                            out.flush(); // Garante que a mensagem seja enviada imediatamente
-                        } else {
-                            Log.e("ChatClient", "Encryption returned null");
-                            ErrorOccurred("Encryption error");
-                        }
-                    } catch (Exception e) {
-                        Log.e("ChatClient", "Send Message failed: " + e.getMessage(), e);
-                        ErrorOccurred(e.getMessage());
-                    }
-                } else {
-                    String errorMsg = "Client is not connected to server.";
-                    Log.e("ChatClient", errorMsg);
-                    ErrorOccurred(errorMsg);
-                }
-            }
-        }).start();
+        sendInBackground("SendMessageWithDetails", SEND_MESSAGE_WITH_DETAILS, null, message);
+    }
+    
+    @SimpleFunction(description = "Joins a room. Room messages are only delivered to the room's members")
+    public void JoinRoom(String room) {
+        if (isValidTarget(room)) {
+            joinedRooms.add(room);
+            sendInBackground("JoinRoom", JOIN_ROOM, room, "");
+        }
+    }
+    
+    @SimpleFunction(description = "Leaves a room joined with JoinRoom")
+    public void LeaveRoom(String room) {
+        if (isValidTarget(room)) {
+            joinedRooms.remove(room);
+            sendInBackground("LeaveRoom", LEAVE_ROOM, room, "");
+        }
+    }
+    
+    @SimpleFunction(description = "Sends a message to the members of a room")
+    public void SendRoomMessage(String room, String message) {
+        if (isValidTarget(room)) {
+            sendInBackground("SendRoomMessage", SEND_ROOM_MESSAGE, room, message);
+        }
+    }
+    
+    @SimpleFunction(description = "Sends a message to a single client, identified by its ClientId")
+    public void SendDirectMessage(String targetId, String message) {
+        if (isValidTarget(targetId)) {
+            sendInBackground("SendDirectMessage", SEND_DIRECT_MESSAGE, targetId, message);
+        }
+    }
+    
+    @SimpleFunction(description = "Asks the server whether a client is online. The answer arrives in PresenceReceived")
+    public void IsOnline(String targetId) {
+        if (!useFrames) {
+            ErrorOccurred("Presence queries need BinaryFraming");
+        } else if (isValidTarget(targetId)) {
+            sendInBackground("IsOnline", PRESENCE_QUERY, targetId, "");
+        }
+    }
+    
+    @SimpleFunction(description = "Asks the server how many clients are online. The answer arrives in OnlineCountReceived")
+    public void RequestOnlineCount() {
+        if (!useFrames) {
+            ErrorOccurred("Presence queries need BinaryFraming");
+        } else {
+            sendInBackground("RequestOnlineCount", ONLINE_COUNT_QUERY, null, "");
+        }
+    }
+    
+    @SimpleFunction(description = "Asks the server for the messages sent since LastSequence. They arrive through "
+        + "MessageReceived and RoomMessageReceived, followed by HistoryReplayed. Join your rooms first")
+    public void RequestHistory() {
+        if (frameVersion < 2) {
+            ErrorOccurred("History needs BinaryFraming and a server that keeps history");
+        } else {
+            replaying = true;
+            sendInBackground("RequestHistory", HISTORY_QUERY, null, "");
+        }
+    }
+    
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR, description = "Sequence number of the newest message received. "
+        + "Store it and set it again before connecting to get only the messages you missed from RequestHistory")
+    public long LastSequence() {
+        return lastSequence;
+    }
+    
+    @SimpleProperty
+    public void LastSequence(long sequence) {
+        lastSequence = sequence;
+        historyCursor = sequence;
+    }
+    
+    @SimpleProperty(category = PropertyCategory.BEHAVIOR, description = "The unique id other clients use to send direct messages to this one")
+    public String ClientId() {
+        return clientId;
     }
     
  // Modifique o método IncomingMessagesListener para descriptografar as mensagens recebidas
     private class IncomingMessagesListener implements Runnable {
+        // The socket and sender of this connection, closed when the connection ends
+        private final Socket connection = socket;
+        private final OutgoingMessagesSender connectionSender = sender;
+        private final FrameCipher cipher = frameCipher;
+        // Like the sender, reads only this connection's streams in the format it negotiated
+        private final boolean frames = useFrames;
+        private final int version = frameVersion;
+        private final DataInputStream frameReader = frameIn;
+        private final BufferedReader lineReader = in;
+        private final int connectionGeneration = generation;
+        private final BodyCompression decompressor = compressFrames ? new BodyCompression() : null;
+        private byte[] encrypted = new byte[256]; // Reused for every frame
+        
         @Override
         public void run() {
             try {
-                String encryptedLine;
-                while ((encryptedLine = in.readLine()) != null) {
-                    String decryptedLine = DecryptMessage(encryptedLine);
-                    if (decryptedLine != null) {
-                        // Trigger an event that a new message has been received
-                        MessageReceived(decryptedLine);
+                if (frames) {
+                    readFrames();
+                } else {
+                    String encryptedLine;
+                    while ((encryptedLine = lineReader.readLine()) != null) {
+                        try {
+                            byte[] line = Base64.getDecoder().decode(encryptedLine);
+                            ByteBuffer decrypted = cipher.open(line, line.length);
+                            // Trigger an event that a new message has been received
+                            receive(new String(decrypted.array(), 0, decrypted.limit(), UTF_8));
+                        } catch (Exception e) {
+                            Log.e("ChatClient", "Could not decrypt message: " + e.getMessage());
+                        }
                     }
                 }
+            } catch (SocketTimeoutException e) {
+                Log.w("ChatClient", "Nothing received for " + idleTimeoutSeconds + " seconds, the connection is lost");
             } catch (IOException e) {
-                e.printStackTrace();
+                if (wantConnected) {
+                    e.printStackTrace();
+                }
+            } finally {
+                connectionSender.stop();
+                try {
+                    connection.close();
+                } catch (IOException ignored) {
+                    // Already closed
+                }
+            }
+            
+            // Unless DisconnectFromServer closed it, the connection was lost
+            if (wantConnected && connection == socket) {
+                isConnected = false;
+                if (autoReconnect) {
+                    reconnect(connectionGeneration);
+                } else {
+                    wantConnected = false;
+                    Disconnected();
+                }
+            }
+        }
+        
+        // Read length-prefixed frames until the server closes the connection
+        private void readFrames() throws IOException {
+            while (true) {
+                int length;
+                try {
+                    length = frameReader.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (length <= 0 || length > MAX_FRAME_LENGTH) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                if (encrypted.length < length) {
+                    encrypted = new byte[Math.max(length, encrypted.length * 2)];
+                }
+                frameReader.readFully(encrypted, 0, length);
+                ByteBuffer body;
+                try {
+                    body = cipher.open(encrypted, length);
+                    if (decompressor != null && body.hasRemaining() && (body.get(0) & COMPRESSED) != 0) {
+                        body = decompressor.inflate(body);
+                    }
+                } catch (GeneralSecurityException e) {
+                    // A frame that fails to decrypt or authenticate leaves nothing on this connection to trust
+                    throw new IOException("Could not decrypt frame: " + e.getMessage(), e);
+                } catch (DataFormatException e) {
+                    throw new IOException("Could not inflate frame: " + e.getMessage(), e);
+                }
+                try {
+                    
+                    // Skip the origin's timestamp and address; the id is only needed for direct messages
+                    byte type = body.get();
+                    body.getLong();
+                    long sequence = version >= 2 ? body.getLong() : 0;
+                    int idLength = body.get() & 0xFF;
+                    int idStart = body.position();
+                    body.position(idStart + idLength);
+                    int addressLength = body.get() & 0xFF;
+                    body.position(body.position() + addressLength);
+                    String target = null;
+                    if (type == ROOM_DELIVER || type == PRESENCE) {
+                        int targetLength = body.get() & 0xFF;
+                        target = new String(body.array(), body.position(), targetLength, UTF_8);
+                        body.position(body.position() + targetLength);
+                    }
+                    
+                    if (sequence > lastSequence && (type == DELIVER || type == ROOM_DELIVER)) {
+                        lastSequence = sequence;
+                    }
+                    if (type == PONG) {
+                        continue; // Only here to show the connection is alive
+                    }
+                    if (type == DELIVER) {
+                        receive(new String(body.array(), body.position(), body.remaining(), UTF_8));
+                        continue;
+                    }
+                    
+                    // Other events must not overtake the messages still waiting in a batch
+                    deliverBatchNow();
+                    if (type == ROOM_DELIVER) {
+                        RoomMessageReceived(target, new String(body.array(), body.position(), body.remaining(), UTF_8));
+                    } else if (type == DIRECT_DELIVER) {
+                        String fromId = new String(body.array(), idStart, idLength, UTF_8);
+                        DirectMessageReceived(fromId, new String(body.array(), body.position(), body.remaining(), UTF_8));
+                    } else if (type == PRESENCE) {
+                        PresenceReceived(target, body.get() == 1);
+                    } else if (type == ONLINE_COUNT) {
+                        OnlineCountReceived(body.getInt());
+                    } else if (type == HISTORY_END) {
+                        historyCursor = sequence;
+                        if (sequence > lastSequence) {
+                            lastSequence = sequence;
+                        }
+                        if (body.get() == 1) {
+                            sendInBackground("RequestHistory", HISTORY_QUERY, null, "");
+                        } else {
+                            replaying = false;
+                            HistoryReplayed();
+                        }
+                    }
+                } catch (Exception e) {
+                    Log.e("ChatClient", "Could not decode frame: " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    // Hand a global message to the app, one event at a time or through the current batch
+    private void receive(String message) {
+        if (!batchMessages) {
+            MessageReceived(message);
+            return;
+        }
+        synchronized (batch) {
+            batch.add(message);
+            if (batch.size() >= batchMaxMessages) {
+                postBatch(true);
+            } else if (!batchPosted) {
+                postBatch(false);
+            }
+        }
+    }
+    
+    // Deliver whatever is batched before an event that must come after it
+    private void deliverBatchNow() {
+        synchronized (batch) {
+            if (!batch.isEmpty()) {
+                postBatch(true);
+            }
+        }
+    }
+    
+    // Call with the batch lock held; a due delivery replaces a delayed one
+    private void postBatch(boolean now) {
+        if (now) {
+            if (!batchDue) {
+                batchPosted = true;
+                batchDue = true;
+                uiHandler.removeCallbacks(batchDelivery);
+                uiHandler.post(batchDelivery);
+            }
+        } else {
+            batchPosted = true;
+            uiHandler.postDelayed(batchDelivery, batchWindowMillis);
+        }
+    }
+    
+    // Runs on the UI thread; a batch that grew past the limit is split
+    private void deliverBatch() {
+        List<String> messages;
+        synchronized (batch) {
+            messages = new ArrayList<String>(batch);
+            batch.clear();
+            batchPosted = false;
+            batchDue = false;
+        }
+        int max = batchMaxMessages;
+        for (int start = 0; start < messages.size(); start += max) {
+            MessagesReceived(YailList.makeList(messages.subList(start, Math.min(start + max, messages.size()))));
+        }
+    }
+    
+    // Stop the current connection without any event. Its listener sees the socket closed, and
+    // since it is no longer the current connection, exits without reconnecting.
+    private void closeConnection() {
+        Socket current = socket;
+        socket = null;
+        isConnected = false;
+        OutgoingMessagesSender currentSender = sender;
+        if (currentSender != null) {
+            currentSender.stop();
+        }
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException ignored) {
+                // Already closed
             }
         }
     }
     
     @SimpleFunction(description = "Disconnects from the chat server")
     public void DisconnectFromServer() {
-        if (isConnected) {
-            try {
-                isConnected = false;
-                if (socket != null) {
-                    socket.close();
-                }
-                if (out != null) {
-                    out.close();
-                }
-                if (in != null) {
-                    in.close();
+        synchronized (connectionLock) {
+            wantConnected = false;
+            generation++;
+            if (isConnected) {
+                try {
+                    isConnected = false;
+                    if (sender != null) {
+                        sender.stop();
+                    }
+                    if (socket != null) {
+                        socket.close();
+                    }
+                    if (out != null) {
+                        out.close();
+                    }
+                    if (in != null) {
+                        in.close();
+                    }
+                    if (frameOut != null) {
+                        frameOut.close();
+                    }
+                    if (frameIn != null) {
+                        frameIn.close();
+                    }
+                    // Trigger Disconnected event
+                    Disconnected();
+                } catch (IOException e) {
+                    // Trigger ErrorOccurred event
+                    ErrorOccurred(e.getMessage());
                 }
-                // Trigger Disconnected event
-                Disconnected();
-            } catch (IOException e) {
-                // Trigger ErrorOccurred event
-                ErrorOccurred(e.getMessage());
             }
         }
     }
@@ -293,6 +1322,78 @@ public class ChatClient extends AndroidNonvisibleComponent {
     	});
     }
     
+    @SimpleEvent(description = "Event triggered with a list of new messages when BatchMessages is on. "
+        + "The messages are in the order the server sent them.")
+    public void MessagesReceived(final YailList messages) {
+    	dispatchEventOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+            	EventDispatcher.dispatchEvent(ChatClient.this, "MessagesReceived", messages);
+            }
+    	});
+    }
+    
+    @SimpleEvent(description = "Event triggered when a message is received from a room this client has joined.")
+    public void RoomMessageReceived(final String room, final String message) {
+    	dispatchEventOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+            	EventDispatcher.dispatchEvent(ChatClient.this, "RoomMessageReceived", room, message);
+            }
+    	});
+    }
+    
+    @SimpleEvent(description = "Event triggered when another client sends a direct message to this one.")
+    public void DirectMessageReceived(final String fromId, final String message) {
+    	dispatchEventOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+            	EventDispatcher.dispatchEvent(ChatClient.this, "DirectMessageReceived", fromId, message);
+            }
+    	});
+    }
+    
+    @SimpleEvent(description = "Event triggered with the answer to IsOnline.")
+    public void PresenceReceived(final String clientId, final boolean online) {
+    	dispatchEventOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+            	EventDispatcher.dispatchEvent(ChatClient.this, "PresenceReceived", clientId, online);
+            }
+    	});
+    }
+    
+    @SimpleEvent(description = "Event triggered with the answer to RequestOnlineCount.")
+    public void OnlineCountReceived(final int count) {
+    	dispatchEventOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+            	EventDispatcher.dispatchEvent(ChatClient.this, "OnlineCountReceived", count);
+            }
+    	});
+    }
+    
+    @SimpleEvent(description = "Event triggered when every message requested with RequestHistory has been delivered.")
+    public void HistoryReplayed() {
+    	dispatchEventOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+            	EventDispatcher.dispatchEvent(ChatClient.this, "HistoryReplayed");
+            }
+    	});
+    }
+    
+    @SimpleEvent(description = "Event triggered when the connection was lost and the client will try to reconnect "
+        + "after waiting delayMillis milliseconds. Connected is triggered again once it succeeds.")
+    public void Reconnecting(final int attempt, final long delayMillis) {
+    	dispatchEventOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+            	EventDispatcher.dispatchEvent(ChatClient.this, "Reconnecting", attempt, delayMillis);
+            }
+    	});
+    }
+    
     @SimpleEvent(description = "Event triggered when an error occurs.")
     public void ErrorOccurred(final String errorMessage) {
         dispatchEventOnUiThread(new Runnable() {
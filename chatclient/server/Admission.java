@@ -0,0 +1,204 @@
+/*
+ * The MIT License (MIT)
+Copyright © 2023 <copyright holders>
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this 
+software and associated documentation files (the “Software”), to deal in the Software 
+without restriction, including without limitation the rights to use, copy, modify, merge, 
+publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons 
+to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies 
+or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR 
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE 
+FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR 
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+DEALINGS IN THE SOFTWARE.
+ */
+
+/*
+ * Admission
+ * Rate limits on the ingest path, checked before a message is decrypted.
+ * Each limit is a token bucket: one keyed by client id, one by remote address
+ * and one for the whole server. A bucket is kept as the time at which it will
+ * be full again (GCRA), so taking a token is one compare-and-set and nothing
+ * needs refilling. Over the limit, a message is either delayed until its
+ * tokens are due, which stops reading from that connection meanwhile, or shed
+ * unread. Keyed buckets that have filled up again are forgotten, since a full
+ * bucket and a new one behave the same.
+ */
+
+package io.chatserver;
+
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+final class Admission {
+    // Which limit held a message back
+    enum Limit {
+        CLIENT, ADDRESS, GLOBAL;
+
+        String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    // What happens to a message over the limit
+    enum Policy {
+        DELAY, SHED;
+
+        static Policy parse(String value) {
+            return valueOf(value.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    // A line or frame longer than the configured maximum; the connection is closed
+    static final class TooLargeException extends ProtocolException {
+        private static final long serialVersionUID = 1L;
+
+        TooLargeException(int length) {
+            super("Message of " + length + " bytes exceeds " + maxMessageBytes);
+        }
+    }
+
+    private static final long SWEEP_SECONDS = 10;
+
+    // Longest line or encrypted frame body accepted from a client
+    static int maxMessageBytes = FrameCodec.MAX_FRAME_LENGTH;
+
+    static Policy policy = Policy.DELAY;
+    // The delay policy still sheds a message that would have to wait longer than this
+    static long maxDelayNanos = TimeUnit.SECONDS.toNanos(1);
+
+    // Messages per second and burst size per limit; a rate of 0 turns the limit off
+    private static double clientRate, addressRate;
+    private static int clientBurst, addressBurst;
+    private static Bucket global;
+
+    private static final Map<String, Bucket> byClient = new ConcurrentHashMap<>();
+    private static final Map<InetAddress, Bucket> byAddress = new ConcurrentHashMap<>();
+
+    private Admission() {
+    }
+
+    static void configure(double clientRate, int clientBurst, double addressRate, int addressBurst, double globalRate,
+            int globalBurst) {
+        Admission.clientRate = clientRate;
+        Admission.clientBurst = clientBurst;
+        Admission.addressRate = addressRate;
+        Admission.addressBurst = addressBurst;
+        global = globalRate > 0 ? new Bucket(globalRate, globalBurst) : null;
+        if (clientRate > 0 || addressRate > 0) {
+            ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "admission-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            sweeper.scheduleWithFixedDelay(Admission::sweep, SWEEP_SECONDS, SWEEP_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    static void checkLength(int length) throws TooLargeException {
+        if (length > maxMessageBytes) {
+            throw new TooLargeException(length);
+        }
+    }
+
+    // Take one message from every limit that applies to the session. Returns 0 to handle the
+    // message now, the nanoseconds to hold it first, or -1 to shed it; a shed message takes
+    // no tokens. The client id limit applies once the session has identified itself.
+    static long admit(Session session) {
+        Bucket client = clientRate > 0 && session.clientId != null
+                ? byClient.computeIfAbsent(session.clientId, id -> new Bucket(clientRate, clientBurst)) : null;
+        Bucket address = addressRate > 0 && session.address != null
+                ? byAddress.computeIfAbsent(session.address, host -> new Bucket(addressRate, addressBurst)) : null;
+        if (client == null && address == null && global == null) {
+            return 0;
+        }
+
+        long now = System.nanoTime();
+        long wait = 0;
+        Limit limit = null;
+        long clientWait = client != null ? client.take(now) : 0;
+        if (clientWait > wait) {
+            wait = clientWait;
+            limit = Limit.CLIENT;
+        }
+        long addressWait = address != null ? address.take(now) : 0;
+        if (addressWait > wait) {
+            wait = addressWait;
+            limit = Limit.ADDRESS;
+        }
+        long globalWait = global != null ? global.take(now) : 0;
+        if (globalWait > wait) {
+            wait = globalWait;
+            limit = Limit.GLOBAL;
+        }
+        if (limit == null) {
+            return 0;
+        }
+        if (policy == Policy.DELAY && wait <= maxDelayNanos) {
+            Metrics.delayed(limit);
+            return wait;
+        }
+        if (client != null) {
+            client.refund();
+        }
+        if (address != null) {
+            address.refund();
+        }
+        if (global != null) {
+            global.refund();
+        }
+        Metrics.shed(limit);
+        return -1;
+    }
+
+    private static void sweep() {
+        long now = System.nanoTime();
+        byClient.values().removeIf(bucket -> bucket.isFull(now));
+        byAddress.values().removeIf(bucket -> bucket.isFull(now));
+    }
+
+    // Token bucket held as the time it will be full again: each message moves that time on
+    // by one interval, and a message is over the limit if it would lie more than a burst ahead
+    private static final class Bucket {
+        private final long interval;
+        private final long tolerance;
+        private final AtomicLong full = new AtomicLong(System.nanoTime());
+
+        Bucket(double rate, int burst) {
+            interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+            tolerance = interval * Math.max(1, burst);
+        }
+
+        // Take one token even if it is not there yet; returns how long until it is
+        long take(long now) {
+            while (true) {
+                long current = full.get();
+                long next = (current - now < 0 ? now : current) + interval;
+                if (full.compareAndSet(current, next)) {
+                    return next - now - tolerance;
+                }
+            }
+        }
+
+        void refund() {
+            full.addAndGet(-interval);
+        }
+
+        boolean isFull(long now) {
+            return full.get() - now <= 0;
+        }
+    }
+}
@@ -28,146 +28,803 @@ DEALINGS IN THE SOFTWARE.
  * Docs: https://docs.google.com/document/d/1xk9dMfczvjbbwD-wMsr-ffqkTlE3ga0ocCE1KOb2wvw/pub#h.4jyv4s6bnjrd
  */
 
-import javax.crypto.Cipher;
-import javax.crypto.spec.SecretKeySpec;
+package io.chatserver;
 
+import java.net.ProtocolException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
 import java.util.Base64;
-import java.util.Collections;
-import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.io.InputStreamReader;
-import java.io.BufferedReader;
-import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
 	
 public class ChatServer {
-	// Define the server port and the encryption details
-    private static final int PORT = 12345;
-    private static final String KEY = "MySuperSecretKey"; // 16-byte key
-    private static final String ALGORITHM = "AES";
+	// Define the server port
+    static final int PORT = 12345;
     
-    // Create a thread-safe list to hold all client handlers
-    private static final List<ClientHandler> clients = new CopyOnWriteArrayList<>();
+    // Create a thread-safe set to hold all connected clients
+    private static final Set<Session> clients = ConcurrentHashMap.newKeySet();
+    
+    // Room name -> members; clients that never join a room only see global broadcasts
+    private static final Map<String, Set<Session>> rooms = new ConcurrentHashMap<>();
+    
+    // Client id -> session, for direct messages and presence
+    private static final Map<String, Session> sessionsById = new ConcurrentHashMap<>();
+
+    // Outbound queue size per client and what happens when a client falls behind
+    static int queueCapacity;
+    static Session.SlowConsumerPolicy slowConsumerPolicy;
+
+    // Heartbeat sessions that send nothing for this long are evicted; 0 keeps them forever
+    static long idleTimeoutMillis;
+    static int acceptBacklog;
+
+    // Hello features this server agrees to; AES-GCM can be turned off with --encryption=legacy
+    // and compression with --compression=off
+    static int helloFeatures = FrameCodec.SUPPORTED_FEATURES;
+
+    // Durable history of global and room messages; null unless --history-dir is given
+    private static MessageLog history;
+
+    // Mail for offline clients; null unless --mailbox-dir is given
+    private static Mailboxes mailboxes;
+
+    // Links to the other nodes sharing this chat space; null unless --cluster is given
+    private static Cluster cluster;
 
     public static void main(String[] args) throws Exception {
-        ServerSocket serverSocket = new ServerSocket(PORT);
-        System.out.println("Server listening on port " + PORT);
+        queueCapacity = Integer.parseInt(option(args, "queue-capacity", "1024"));
+        slowConsumerPolicy = Session.SlowConsumerPolicy.parse(option(args, "slow-consumer", "drop-oldest"));
+        idleTimeoutMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(option(args, "idle-timeout-seconds", "60")));
+        acceptBacklog = Integer.parseInt(option(args, "accept-backlog", "1024"));
+        String encryption = option(args, "encryption", "gcm");
+        if (encryption.equals("legacy")) {
+            helloFeatures &= ~FrameCodec.FEATURE_GCM;
+        } else if (!encryption.equals("gcm")) {
+            throw new IllegalArgumentException("Unknown encryption: " + encryption + " (expected gcm or legacy)");
+        }
+        String compression = option(args, "compression", "deflate");
+        if (compression.equals("off")) {
+            helloFeatures &= ~FrameCodec.FEATURE_DEFLATE;
+        } else if (!compression.equals("deflate")) {
+            throw new IllegalArgumentException("Unknown compression: " + compression + " (expected deflate or off)");
+        }
+        Compression.threshold = Integer.parseInt(option(args, "compression-threshold",
+                String.valueOf(Compression.DEFAULT_THRESHOLD)));
+        configureAdmission(args);
+        ServerLog.start(ServerLog.Level.parse(option(args, "log-level", "info")),
+                Integer.parseInt(option(args, "log-sample", "1")),
+                Integer.parseInt(option(args, "log-buffer", "8192")));
+        Metrics.start();
+        String metricsPort = option(args, "metrics-port", null);
+        if (metricsPort != null) {
+            Metrics.serve(option(args, "metrics-host", "127.0.0.1"), Integer.parseInt(metricsPort));
+        }
+
+        String historyDir = option(args, "history-dir", null);
+        if (historyDir != null) {
+            history = MessageLog.open(Paths.get(historyDir),
+                    Integer.parseInt(option(args, "history-segment-mb", "64")) << 20,
+                    Long.parseLong(option(args, "history-retain-mb", "1024")) << 20,
+                    TimeUnit.HOURS.toMillis(Long.parseLong(option(args, "history-retain-hours", "168"))));
+        }
+
+        String mailboxDir = option(args, "mailbox-dir", null);
+        if (mailboxDir != null) {
+            mailboxes = Mailboxes.open(Paths.get(mailboxDir),
+                    Long.parseLong(option(args, "mailbox-memory-mb", "64")) << 20,
+                    TimeUnit.HOURS.toMillis(Long.parseLong(option(args, "mailbox-ttl-hours", "24"))),
+                    Integer.parseInt(option(args, "mailbox-max-messages", "500")));
+        }
+
+        String members = option(args, "cluster", null);
+        if (members != null) {
+            cluster = Cluster.start(option(args, "node-id", null), members,
+                    Integer.parseInt(option(args, "cluster-buffer", "65536")));
+        }
+
+        // Pick the connection engine: "classic" (one thread per client) or "nio" (selector event loops)
+        String engine = option(args, "engine", "classic");
+        int port = Integer.parseInt(option(args, "port", String.valueOf(PORT)));
+        if (engine.equals("nio")) {
+            int loops = Integer.parseInt(option(args, "loops", String.valueOf(Runtime.getRuntime().availableProcessors())));
+            new NioEngine(port, loops).run();
+        } else if (engine.equals("classic")) {
+            runClassic(port, handlerThreads(option(args, "threads", "platform")));
+        } else {
+            throw new IllegalArgumentException("Unknown engine: " + engine + " (expected classic or nio)");
+        }
+    }
+
+    // Rate limits in messages per second, each with a burst of twice the rate unless given
+    private static void configureAdmission(String[] args) {
+        double clientRate = Double.parseDouble(option(args, "client-rate", "50"));
+        double addressRate = Double.parseDouble(option(args, "address-rate", "0"));
+        double globalRate = Double.parseDouble(option(args, "global-rate", "0"));
+        Admission.configure(
+                clientRate, Integer.parseInt(option(args, "client-burst", String.valueOf((int) Math.ceil(clientRate * 2)))),
+                addressRate, Integer.parseInt(option(args, "address-burst", String.valueOf((int) Math.ceil(addressRate * 2)))),
+                globalRate, Integer.parseInt(option(args, "global-burst", String.valueOf((int) Math.ceil(globalRate * 2)))));
+        Admission.policy = Admission.Policy.parse(option(args, "rate-limit", "delay"));
+        Admission.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(option(args, "rate-limit-max-delay-ms", "1000")));
+        Admission.maxMessageBytes = Math.min(FrameCodec.MAX_FRAME_LENGTH,
+                Integer.parseInt(option(args, "max-message-bytes", String.valueOf(FrameCodec.MAX_FRAME_LENGTH))));
+    }
+
+    // Classic engine: one blocking thread per connected client
+    private static void runClassic(int port, ThreadFactory threads) throws Exception {
+        // A deep backlog absorbs the burst of reconnects after a restart
+        ServerSocket serverSocket = new ServerSocket(port, acceptBacklog);
+        ServerLog.info("Server listening on port " + port);
         
         while (true) {
         	// Accept new client connections
             Socket clientSocket = serverSocket.accept();
-            System.out.println("Connection established with " + clientSocket.getRemoteSocketAddress());
+            Metrics.connectionsAccepted.increment();
+            clientSocket.setKeepAlive(true);
+            ServerLog.info("Connection established with ", clientSocket.getRemoteSocketAddress());
             
             // Create a new client handler for the connection
-            ClientHandler clientHandler = new ClientHandler(clientSocket);
-            clients.add(clientHandler);
+            ClientHandler clientHandler = new ClientHandler(clientSocket, threads);
             
             // Start a new thread to handle the client
-            new Thread(clientHandler).start();
+            threads.newThread(clientHandler).start();
         }
     }
+
+    // Threads for the classic engine: "platform" threads, or "virtual" threads on JDK 21+.
+    // Virtual threads unmount from their carrier while blocked in socket reads, so idle
+    // clients cost a small heap object instead of a full thread stack.
+    static ThreadFactory handlerThreads(String mode) {
+        if (mode.equals("platform")) {
+            return Thread::new;
+        }
+        if (!mode.equals("virtual")) {
+            throw new IllegalArgumentException("Unknown thread mode: " + mode + " (expected platform or virtual)");
+        }
+        try {
+            // Looked up reflectively so the server still compiles and runs on older JDKs
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads require JDK 21 or newer", e);
+        }
+    }
+
+    // Read a "--name=value" command-line option, falling back to the default when absent
+    static String option(String[] args, String name, String defaultValue) {
+        String prefix = "--" + name + "=";
+        for (String arg : args) {
+            if (arg.startsWith(prefix)) {
+                return arg.substring(prefix.length());
+            }
+        }
+        return defaultValue;
+    }
     
     // Broadcast a message to all clients except the sender
-    public static void broadcast(String message, ClientHandler sender) {
-        for (ClientHandler client : clients) {
+    public static void broadcast(OutboundMessage message, Session sender) {
+        for (Session client : clients) {
             if (client != sender) {
-                client.sendMessage(message);
+                client.send(message);
+            }
+        }
+    }
+    
+    // Deliver a room message to the room's members except the sender
+    static void sendToRoom(String room, OutboundMessage message, Session sender) {
+        Set<Session> members = rooms.get(room);
+        if (members == null) {
+            return;
+        }
+        for (Session member : members) {
+            if (member != sender) {
+                member.send(message);
+            }
+        }
+    }
+    
+    static void joinRoom(Session client, String room) {
+        rooms.compute(room, (name, members) -> {
+            if (members == null) {
+                members = ConcurrentHashMap.newKeySet();
+            }
+            members.add(client);
+            return members;
+        });
+        client.rooms.add(room);
+    }
+    
+    // Empty rooms are dropped from the index
+    static void leaveRoom(Session client, String room) {
+        client.rooms.remove(room);
+        rooms.computeIfPresent(room, (name, members) -> {
+            members.remove(client);
+            return members.isEmpty() ? null : members;
+        });
+    }
+    
+    // Add a client to the list; anything logged after this point reaches it live
+    static void addClient(Session client) {
+        client.historyEnd = history != null ? history.lastSequence() : 0;
+        clients.add(client);
+    }
+    
+    // Record the client's id the first time it sends one. A reconnecting client replaces
+    // its old session, which is closed: its peer is gone even if TCP has not noticed yet.
+    // Mail kept while the client was offline is queued for it at once, and other cluster nodes
+    // forward what they kept for it.
+    private static void register(Session client, Frame frame, CipherContext crypto) {
+        String clientId = frame.clientId;
+        if (client.clientId == null && clientId != null) {
+            client.clientId = clientId;
+            Session previous = sessionsById.put(clientId, client);
+            if (previous != null && previous != client) {
+                previous.closedBy(Metrics.Cause.REPLACED);
+                ServerLog.info("Replacing the previous session of ", clientId);
+                previous.close();
             }
+            if (mailboxes != null) {
+                Frame mail = new Frame();
+                mailboxes.deliver(clientId, body -> sendMail(client, body, mail, crypto));
+            }
+            if (cluster != null) {
+                cluster.identified(frame);
+            }
+        }
+    }
+
+    // The client identified itself while its mail was being stored, after the mailbox was emptied
+    private static void deliverLate(String clientId, OutboundMessage message) {
+        Session session = sessionsById.get(clientId);
+        if (session != null) {
+            session.send(message);
         }
     }
+
+    // Queue one kept DIRECT_DELIVER or ROOM_DELIVER body in the client's own wire format
+    private static void sendMail(Session client, ByteBuffer body, Frame mail, CipherContext crypto) {
+        FrameCodec.decode(body, mail, FrameCodec.VERSION);
+        byte[] room = mail.target != null ? mail.target.getBytes(StandardCharsets.UTF_8) : null;
+        client.send(new OutboundMessage(mail.type, mail, room, mail.payload, crypto));
+    }
+    
+    static boolean isOnline(String clientId) {
+        return sessionsById.containsKey(clientId);
+    }
     
-    // Remove a client from the list
-    public static void removeClient(ClientHandler client) {
-        clients.remove(client);
+    static int onlineCount() {
+        return sessionsById.size();
+    }
+    
+    // Read-only view of the connected clients, for metrics scrapes
+    static Collection<Session> clients() {
+        return clients;
+    }
+    
+    static int clientCount() {
+        return clients.size();
+    }
+    
+    static int mailboxCount() {
+        return mailboxes != null ? mailboxes.count() : 0;
+    }
+    
+    static long mailboxMemory() {
+        return mailboxes != null ? mailboxes.memoryUsed() : 0;
+    }
+    
+    // Remove a client from the list, the id registry and every room it joined. Its mail is
+    // kept from now on; room messages only when there is no history to replay them from.
+    public static void removeClient(Session client) {
+        if (clients.remove(client)) {
+            Metrics.disconnected(client.closeCause);
+        }
+        if (client.clientId != null && sessionsById.remove(client.clientId, client) && mailboxes != null) {
+            mailboxes.offline(client.clientId, history == null ? client.rooms : Set.of());
+        }
+        for (String room : client.rooms) {
+            leaveRoom(client, room);
+        }
     }
 
-    // Inner class to handle client connections
-    private static class ClientHandler implements Runnable {
-    	private Socket socket;
-        private BufferedReader in;
-        private PrintWriter out;
-        private Cipher cipher;
-        private SecretKeySpec keySpec;
+    // Decrypt a legacy Base64 line and parse its comma-separated fields
+    static void decodeLine(String encryptedMessage, CipherContext crypto, Frame frame)
+            throws GeneralSecurityException, ProtocolException {
+        long start = System.nanoTime();
+        byte[] encrypted = Base64.getDecoder().decode(encryptedMessage);
+        ByteBuffer plaintext = frame.plaintextBuffer(crypto.decryptor.getOutputSize(encrypted.length));
+        int length = crypto.decryptor.doFinal(encrypted, 0, encrypted.length, plaintext.array());
+        long decrypted = System.nanoTime();
+        FrameCodec.decodeLine(new String(plaintext.array(), 0, length, StandardCharsets.UTF_8), frame);
+        Metrics.decrypt.record(decrypted - start);
+        Metrics.parse.record(System.nanoTime() - decrypted);
+        Metrics.messagesIn.increment();
+        Metrics.bytesIn.add(encryptedMessage.length() + 1);
+    }
+
+    // Decrypt a binary frame body into the frame's scratch buffer, inflate it if it was
+    // compressed, and read its fields. The session cipher is null unless the connection
+    // negotiated AES-GCM.
+    static void decodeFrame(ByteBuffer encryptedBody, CipherContext crypto, SessionCipher sessionCipher, Frame frame,
+            int version) throws GeneralSecurityException, IOException {
+        long start = System.nanoTime();
+        int length = encryptedBody.remaining();
+        ByteBuffer body = frame.plaintextBuffer(length);
+        if (sessionCipher != null) {
+            sessionCipher.open(encryptedBody, body);
+        } else {
+            crypto.decryptor.doFinal(encryptedBody, body);
+        }
+        body.flip();
+        long decrypted = System.nanoTime();
+        if (body.hasRemaining() && (body.get(0) & FrameCodec.COMPRESSED) != 0) {
+            body = Compression.inflate(body, frame);
+            decrypted = System.nanoTime();
+        }
+        FrameCodec.decode(body, frame, version);
+        Metrics.decrypt.record(decrypted - start);
+        Metrics.parse.record(System.nanoTime() - decrypted);
+        Metrics.messagesIn.increment();
+        Metrics.bytesIn.add(4 + length);
+    }
+
+    // Handle one decoded request. Chat messages are logged, encrypted once per wire format
+    // and queued for the sender and every other client, room member or the direct recipient.
+    static void handleFrame(Session sender, Frame frame, CipherContext crypto) {
+        register(sender, frame, crypto);
+        switch (frame.type) {
+            case FrameCodec.IDENTIFY:
+                return;
+            case FrameCodec.JOIN_ROOM:
+            case FrameCodec.LEAVE_ROOM:
+                if (frame.type == FrameCodec.JOIN_ROOM) {
+                    joinRoom(sender, frame.target);
+                } else {
+                    leaveRoom(sender, frame.target);
+                }
+                ServerLog.request(frame);
+                return;
+            case FrameCodec.PRESENCE_QUERY:
+            case FrameCodec.ONLINE_COUNT_QUERY:
+                answerPresence(sender, frame, crypto);
+                return;
+            case FrameCodec.HISTORY_QUERY:
+                replayHistory(sender, frame, crypto);
+                return;
+            case FrameCodec.PING:
+                // Receiving it already proved the client alive; the pong does the same for the client
+                sender.send(new OutboundMessage(FrameCodec.PONG, frame, null, new byte[0], crypto));
+                return;
+            default:
+                break;
+        }
         
-        // Variables to store client details
-        private String clientMethod;
-        private String clientMessage;
-        private String clientId;
-        private String clientIp;
-        private String clientTimestamp;
+        byte[] reply;
+        if (frame.type == FrameCodec.SEND_MESSAGE_WITH_DETAILS) {
+            reply = (frame.payloadText() + ", " + frame.addressText() + ", " + frame.clientId + ", " + frame.timestampText())
+                    .getBytes(StandardCharsets.UTF_8);
+        } else {
+            reply = frame.payload;
+        }
+        
+        // Log the received message and details; the text is built on the log thread
+        ServerLog.request(frame);
+        
+        // Fan-out time covers encrypting each wire format once and queueing for every recipient
+        long start = System.nanoTime();
+        if (frame.type == FrameCodec.SEND_DIRECT_MESSAGE) {
+            // One hash lookup; the sender gets no echo of a direct message
+            Session recipient = sessionsById.get(frame.target);
+            if (recipient != null) {
+                recipient.send(new OutboundMessage(FrameCodec.DIRECT_DELIVER, frame, null, reply, crypto));
+            } else {
+                if (mailboxes != null) {
+                    OutboundMessage message = new OutboundMessage(FrameCodec.DIRECT_DELIVER, frame, null, reply, crypto);
+                    mailboxes.storeDirect(frame.target, message, clientId -> deliverLate(clientId, message));
+                }
+                if (cluster != null) {
+                    // The recipient may be connected to another node
+                    cluster.relay(FrameCodec.SEND_DIRECT_MESSAGE, frame, frame.target.getBytes(StandardCharsets.UTF_8), reply);
+                }
+            }
+        } else if (frame.type == FrameCodec.SEND_ROOM_MESSAGE) {
+            byte[] room = frame.target.getBytes(StandardCharsets.UTF_8);
+            OutboundMessage message = new OutboundMessage(FrameCodec.ROOM_DELIVER, frame, room, reply, crypto);
+            log(message);
+            sender.send(message);
+            sendToRoom(frame.target, message, sender);
+            if (mailboxes != null) {
+                mailboxes.storeRoom(frame.target, message, clientId -> deliverLate(clientId, message));
+            }
+            if (cluster != null) {
+                cluster.relay(FrameCodec.SEND_ROOM_MESSAGE, frame, room, reply);
+            }
+        } else {
+            OutboundMessage message = new OutboundMessage(FrameCodec.DELIVER, frame, null, reply, crypto);
+            log(message);
+            sender.send(message);
+            broadcast(message, sender);
+            if (cluster != null) {
+                cluster.relay(FrameCodec.SEND_MESSAGE, frame, null, reply);
+            }
+        }
+        Metrics.fanOut.record(System.nanoTime() - start);
+    }
 
+    // Fan out a message another cluster node accepted from one of its clients. The sender is
+    // not connected here, so nobody is skipped, and the text already has any details expanded.
+    static void deliverRelayed(Frame frame, CipherContext crypto) {
+        if (frame.type == FrameCodec.IDENTIFY) {
+            // The client is back on another node: its mailbox here is stale, so hand the mail over
+            if (mailboxes != null) {
+                String clientId = frame.clientId;
+                mailboxes.deliver(clientId, body -> cluster.forwardMail(clientId, body));
+            }
+            return;
+        }
+        if (frame.type == Cluster.FORWARDED_MAIL) {
+            Session recipient = sessionsById.get(frame.clientId);
+            if (recipient != null) {
+                sendMail(recipient, ByteBuffer.wrap(frame.payload), new Frame(), crypto);
+            } else if (mailboxes != null) {
+                // Gone again, from this node: it is kept here now
+                mailboxes.store(frame.clientId, frame.payload, clientId -> {
+                    Session session = sessionsById.get(clientId);
+                    if (session != null) {
+                        sendMail(session, ByteBuffer.wrap(frame.payload), new Frame(), crypto);
+                    }
+                });
+            }
+            return;
+        }
+        long start = System.nanoTime();
+        if (frame.type == FrameCodec.SEND_DIRECT_MESSAGE) {
+            Session recipient = sessionsById.get(frame.target);
+            OutboundMessage message = new OutboundMessage(FrameCodec.DIRECT_DELIVER, frame, null, frame.payload, crypto);
+            if (recipient != null) {
+                recipient.send(message);
+            } else if (mailboxes != null) {
+                mailboxes.storeDirect(frame.target, message, clientId -> deliverLate(clientId, message));
+            }
+        } else if (frame.type == FrameCodec.SEND_ROOM_MESSAGE) {
+            byte[] room = frame.target.getBytes(StandardCharsets.UTF_8);
+            OutboundMessage message = new OutboundMessage(FrameCodec.ROOM_DELIVER, frame, room, frame.payload, crypto);
+            log(message);
+            sendToRoom(frame.target, message, null);
+            if (mailboxes != null) {
+                mailboxes.storeRoom(frame.target, message, clientId -> deliverLate(clientId, message));
+            }
+        } else {
+            OutboundMessage message = new OutboundMessage(FrameCodec.DELIVER, frame, null, frame.payload, crypto);
+            log(message);
+            broadcast(message, null);
+        }
+        Metrics.fanOut.record(System.nanoTime() - start);
+    }
+    
+    // Presence is read straight from the lock-free session registry. Only binary
+    // clients get an answer, since the legacy line format has no reply types.
+    private static void answerPresence(Session sender, Frame frame, CipherContext crypto) {
+        if (sender.version == 0) {
+            return;
+        }
+        if (frame.type == FrameCodec.PRESENCE_QUERY) {
+            byte[] online = {(byte) (isOnline(frame.target) ? 1 : 0)};
+            byte[] target = frame.target.getBytes(StandardCharsets.UTF_8);
+            sender.send(new OutboundMessage(FrameCodec.PRESENCE, frame, target, online, crypto));
+        } else {
+            byte[] count = ByteBuffer.allocate(4).putInt(onlineCount()).array();
+            sender.send(new OutboundMessage(FrameCodec.ONLINE_COUNT, frame, null, count, crypto));
+        }
+    }
 
-        public ClientHandler(Socket socket) throws Exception {
+    // Sequence the message before it is encoded, so every recipient sees the same number
+    private static void log(OutboundMessage message) {
+        if (history != null) {
+            history.append(message);
+        }
+    }
+    
+    // Replay what a version 2 client missed since its last sequence, up to the moment it
+    // connected, one page at a time. HISTORY_END carries the last sequence covered and
+    // whether the client should ask again for the next page.
+    private static void replayHistory(Session sender, Frame frame, CipherContext crypto) {
+        if (sender.version < 2) {
+            return;
+        }
+        ServerLog.request(frame);
+        long last = frame.sequence;
+        int[] replayed = {0};
+        int pageSize = Math.max(1, queueCapacity / 2);
+        if (history != null) {
+            last = history.replay(frame.sequence, sender.historyEnd, pageSize, sender.rooms, body -> {
+                try {
+                    // AES-GCM sessions get the plaintext body, which their writer seals
+                    byte[] compressed = sender.compression ? Compression.compress(body) : null;
+                    if (compressed != null) {
+                        sender.queue(sender.sessionCipher != null ? compressed
+                                : OutboundMessage.encryptFrame(ByteBuffer.wrap(compressed), crypto));
+                    } else if (sender.sessionCipher != null) {
+                        byte[] copy = new byte[body.remaining()];
+                        body.get(copy);
+                        sender.queue(copy);
+                    } else {
+                        sender.queue(OutboundMessage.encryptFrame(body, crypto));
+                    }
+                    replayed[0]++;
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException("Could not encrypt message", e);
+                }
+            });
+        }
+        // Messages logged before the client connected may not be written yet
+        boolean pending = history != null && history.behind(sender.historyEnd);
+        byte[] more = {(byte) (replayed[0] == pageSize || pending ? 1 : 0)};
+        OutboundMessage end = new OutboundMessage(FrameCodec.HISTORY_END, frame, null, more, crypto);
+        end.sequence = last;
+        sender.send(end);
+    }
+
+    // Inner class to handle client connections
+    private static class ClientHandler extends Session implements Runnable {
+        // How long a new connection may stay silent before it is treated as a legacy client
+        private static final int NEGOTIATION_TIMEOUT_MS = 500;
+
+    	private final Socket socket;
+        private final BufferedInputStream in;
+        private final OutputStream out;
+        private final CipherContext crypto;
+        private final Frame frame = new Frame();
+        private final Thread writer;
+        // Legacy lines are read here; bytes from lineStart to lineEnd are not consumed yet
+        private byte[] lineBuffer = new byte[512];
+        private int lineStart;
+        private int lineEnd;
+
+
+        public ClientHandler(Socket socket, ThreadFactory threads) throws Exception {
+            super(queueCapacity, slowConsumerPolicy);
             this.socket = socket;
+            this.address = socket.getInetAddress();
             
             // Set up streams for communication
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            in = new BufferedInputStream(socket.getInputStream());
+            out = new BufferedOutputStream(socket.getOutputStream());
             
             // Set up encryption components
-            keySpec = new SecretKeySpec(KEY.getBytes(), ALGORITHM);
-            cipher = Cipher.getInstance(ALGORITHM);
+            crypto = new CipherContext();
+            
+            // A dedicated writer drains the outbound queue
+            writer = threads.newThread(this::drainOutbound);
         }
 
         @Override
         public void run() {
             try {
-                while (true) {
-                	// Read the encrypted message from the client
-                    String encryptedMessage = in.readLine();
-                    if (encryptedMessage == null) break;
-
-                    // Decrypt the message
-                    cipher.init(Cipher.DECRYPT_MODE, keySpec);
-                    byte[] decryptedBytes = cipher.doFinal(Base64.getDecoder().decode(encryptedMessage));
-                    String message = new String(decryptedBytes);
-                    
-                    // Check for the message details
-                    String[] parts = message.split(",", 5);
-                    
-                    // Assign the details to variables
-                    clientMethod = parts[0];
-                    clientTimestamp = parts[1];
-                    clientIp = parts[2];
-                    clientId = parts[3];
-                    clientMessage = parts[4];
-                    
-                    if (clientMethod == "SendMessageWithDetails") {
-                        message = clientMessage + ", " + clientIp + ", " + clientId + ", " + clientTimestamp;
-                    } else {
-                    	message = clientMessage;
-                    }
-                    
-                    // Log the received message and details
-                    System.out.println(
-                    		"clientMethod: " + clientMethod
-                    		+ ", Message received: " + clientMessage 
-                    		+ ", IP: " + clientIp + ", ID: " 
-                    		+ clientId + ", Timestamp: " 
-                    		+ clientTimestamp
-                    		);
-                    
-                    // Encrypt and send the response
-                    cipher.init(Cipher.ENCRYPT_MODE, keySpec);
-                    String encryptedResponse = Base64.getEncoder().encodeToString(cipher.doFinal(message.getBytes()));
-                    out.println(encryptedResponse);
+                version = negotiate();
+                if (heartbeats && idleTimeoutMillis > 0) {
+                    socket.setSoTimeout((int) idleTimeoutMillis);
                 }
+                addClient(this);
+                writer.start();
+                if (version > 0) {
+                    readFrames();
+                } else {
+                    readLines();
+                }
+            } catch (SocketTimeoutException e) {
+                closedBy(Metrics.Cause.IDLE_TIMEOUT);
+                ServerLog.warn("Evicting idle client ", remoteAddress());
             } catch (Exception e) {
-                e.printStackTrace();
+                // A session closed on purpose (replaced, too slow) fails its read; that is no error
+                if (closeCause == null) {
+                    closedBy(Metrics.Cause.of(e));
+                    ServerLog.error("Connection with " + remoteAddress() + " failed", e);
+                }
             } finally {
+                close();
+                ChatServer.removeClient(this);
+            }
+        }
+        
+        // Newer clients open with a hello; legacy clients start with a Base64 line or stay silent.
+        // With AES-GCM the server sends its nonce after the reply and the client answers with its own.
+        private int negotiate() throws IOException, GeneralSecurityException {
+            socket.setSoTimeout(NEGOTIATION_TIMEOUT_MS);
+            in.mark(FrameCodec.HELLO_LENGTH);
+            try {
+                if (in.read() != (FrameCodec.HELLO_MAGIC[0] & 0xFF)) {
+                    in.reset();
+                    return 0;
+                }
+                byte[] hello = new byte[FrameCodec.HELLO_LENGTH];
+                hello[0] = FrameCodec.HELLO_MAGIC[0];
+                new DataInputStream(in).readFully(hello, 1, hello.length - 1);
+                
+                // The writer has not started yet, so the reply goes out first
+                byte[] reply = FrameCodec.helloReply(hello, helloFeatures);
+                int features = FrameCodec.helloFeatures(reply);
+                out.write(reply);
+                byte[] serverNonce = null;
+                if ((features & FrameCodec.FEATURE_GCM) != 0) {
+                    serverNonce = SessionCipher.newNonce();
+                    out.write(serverNonce);
+                }
+                out.flush();
+                if (serverNonce != null) {
+                    byte[] clientNonce = new byte[SessionCipher.NONCE_LENGTH];
+                    try {
+                        new DataInputStream(in).readFully(clientNonce);
+                    } catch (SocketTimeoutException e) {
+                        // Too late to fall back to legacy lines: the client asked for AES-GCM
+                        throw new ProtocolException("No client nonce after the hello");
+                    }
+                    sessionCipher = new SessionCipher(clientNonce, serverNonce);
+                }
+                heartbeats = (features & FrameCodec.FEATURE_HEARTBEAT) != 0;
+                compression = (features & FrameCodec.FEATURE_DEFLATE) != 0;
+                return FrameCodec.helloVersion(reply);
+            } catch (SocketTimeoutException e) {
+                in.reset();
+                return 0;
+            } finally {
+                socket.setSoTimeout(0);
+            }
+        }
+        
+        private void readLines() throws Exception {
+            while (true) {
+            	// Read the encrypted message from the client
+                String encryptedMessage = readLine();
+                if (encryptedMessage == null) break;
+
+                // Decrypt, log and fan out the response
+                if (admitted()) {
+                    decodeLine(encryptedMessage, crypto, frame);
+                    handleFrame(this, frame, crypto);
+                }
+            }
+        }
+        
+        // Read one line without its terminator, refusing a line over the size limit before
+        // more of it is buffered; null at the end of the stream
+        private String readLine() throws IOException {
+            int scanned = lineStart;
+            while (true) {
+                for (int i = scanned; i < lineEnd; i++) {
+                    if (lineBuffer[i] == '\n') {
+                        int end = (i > lineStart && lineBuffer[i - 1] == '\r') ? i - 1 : i;
+                        // A whole line can arrive in one read, before the check below sees it
+                        Admission.checkLength(end - lineStart);
+                        String line = new String(lineBuffer, lineStart, end - lineStart, StandardCharsets.US_ASCII);
+                        lineStart = i + 1;
+                        return line;
+                    }
+                }
+                Admission.checkLength(lineEnd - lineStart);
+                if (lineStart > 0) {
+                    System.arraycopy(lineBuffer, lineStart, lineBuffer, 0, lineEnd - lineStart);
+                    lineEnd -= lineStart;
+                    lineStart = 0;
+                }
+                if (lineEnd == lineBuffer.length) {
+                    lineBuffer = Arrays.copyOf(lineBuffer, lineBuffer.length * 2);
+                }
+                scanned = lineEnd;
+                int count = in.read(lineBuffer, lineEnd, lineBuffer.length - lineEnd);
+                if (count < 0) {
+                    if (lineEnd == lineStart) {
+                        return null;
+                    }
+                    Admission.checkLength(lineEnd - lineStart);
+                    String line = new String(lineBuffer, lineStart, lineEnd - lineStart, StandardCharsets.US_ASCII);
+                    lineStart = lineEnd;
+                    return line;
+                }
+                lineEnd += count;
+            }
+        }
+        
+        private void readFrames() throws Exception {
+            DataInputStream frames = new DataInputStream(in);
+            byte[] encrypted = new byte[256];
+            while (true) {
+                int length;
                 try {
-                    socket.close();
-                } catch (Exception e) {
-                    e.printStackTrace();
+                    length = frames.readInt();
+                } catch (EOFException e) {
+                    break;
                 }
-                ChatServer.removeClient(this);
+                if (length <= 0) {
+                    throw new ProtocolException("Invalid frame length " + length);
+                }
+                Admission.checkLength(length);
+                if (encrypted.length < length) {
+                    encrypted = new byte[Math.max(length, encrypted.length * 2)];
+                }
+                frames.readFully(encrypted, 0, length);
+                
+                if (!admitted()) {
+                    // Shed unread; the GCM nonce counter still moves past it
+                    if (sessionCipher != null) {
+                        sessionCipher.skip();
+                    }
+                    continue;
+                }
+                decodeFrame(ByteBuffer.wrap(encrypted, 0, length), crypto, sessionCipher, frame, version);
+                handleFrame(this, frame, crypto);
+            }
+        }
+        
+        // A delayed message holds this client's thread, and so its reads, until its tokens are due
+        private boolean admitted() throws InterruptedException {
+            long wait = Admission.admit(this);
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            return wait >= 0;
+        }
+        
+        // Write queued messages, sealing them first on AES-GCM sessions, and flush once
+        // whenever the queue runs dry
+        private void drainOutbound() {
+            try {
+                while (true) {
+                    byte[] wire = outbound.take();
+                    if (sessionCipher != null) {
+                        ByteBuffer sealed = sessionCipher.seal(wire);
+                        out.write(sealed.array(), 0, sealed.limit());
+                        Metrics.written(sealed.limit());
+                    } else {
+                        out.write(wire);
+                        Metrics.written(wire.length);
+                    }
+                    if (outbound.isEmpty()) {
+                        out.flush();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // The connection was closed
+            } catch (Exception e) {
+                closedBy(Metrics.Cause.IO_ERROR);
+                close();
             }
         }
         
-        // Helper method to send a message to the client
-        public void sendMessage(String message) {
-            out.println(message);
+        @Override
+        protected void messageQueued() {
+            // The writer is blocked in take() and wakes up by itself
+        }
+        
+        @Override
+        void close() {
+            writer.interrupt();
+            try {
+                socket.close();
+            } catch (Exception e) {
+                ServerLog.error("Could not close connection", e);
+            }
+        }
+        
+        @Override
+        String remoteAddress() {
+            return String.valueOf(socket.getRemoteSocketAddress());
         }
     }
 }
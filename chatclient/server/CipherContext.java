@@ -0,0 +1,52 @@
+/*
+ * The MIT License (MIT)
+Copyright © 2023 <copyright holders>
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this 
+software and associated documentation files (the “Software”), to deal in the Software 
+without restriction, including without limitation the rights to use, copy, modify, merge, 
+publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons 
+to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies 
+or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR 
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE 
+FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR 
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+DEALINGS IN THE SOFTWARE.
+ */
+
+/*
+ * CipherContext
+ * One thread's AES ciphers for the key shared with every client, initialized
+ * once. Legacy AES runs in ECB mode, which returns to its initialized state
+ * after each doFinal, so no message pays for an init or a key schedule.
+ */
+
+package io.chatserver;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+final class CipherContext {
+    static final byte[] SHARED_KEY = "MySuperSecretKey".getBytes(StandardCharsets.US_ASCII); // 16-byte key
+    private static final String ALGORITHM = "AES";
+    private static final SecretKeySpec KEY_SPEC = new SecretKeySpec(SHARED_KEY, ALGORITHM);
+
+    final Cipher encryptor;
+    final Cipher decryptor;
+
+    // Ciphers are not thread-safe, so each thread that encrypts or decrypts needs its own context
+    CipherContext() throws GeneralSecurityException {
+        encryptor = Cipher.getInstance(ALGORITHM);
+        encryptor.init(Cipher.ENCRYPT_MODE, KEY_SPEC);
+        decryptor = Cipher.getInstance(ALGORITHM);
+        decryptor.init(Cipher.DECRYPT_MODE, KEY_SPEC);
+    }
+}
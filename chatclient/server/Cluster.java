@@ -0,0 +1,346 @@
+/*
+ * The MIT License (MIT)
+Copyright © 2023 <copyright holders>
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this 
+software and associated documentation files (the “Software”), to deal in the Software 
+without restriction, including without limitation the rights to use, copy, modify, merge, 
+publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons 
+to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies 
+or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR 
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE 
+FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR 
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+DEALINGS IN THE SOFTWARE.
+ */
+
+/*
+ * Cluster
+ * Links between ChatServer nodes that share one chat space. Every node gets
+ * the same static member list and its own id. It listens for peers on its
+ * own member address and dials every other member. Links are one-way: a node
+ * relays the messages of its own clients over the links it dialed, and fans
+ * out what arrives on the links it accepted without relaying it again, so in
+ * the full mesh each peer receives one copy.
+ *
+ * Relayed messages are version 2 request bodies whose sequence field is the
+ * origin node's own counter. They wait in a bounded ring, so a link that
+ * reconnects resumes after the last sequence its peer delivered, and the peer
+ * drops anything at or below it: nothing is delivered twice or out of order.
+ * A peer that has never heard of this node, or of this run of it, is sent
+ * only what is relayed from then on. Links use AES-GCM under a key derived
+ * from the shared key and both ends' nonces, like client sessions.
+ *
+ * Besides chat messages, a node relays an IDENTIFY when one of its clients
+ * identifies itself, so a peer still holding a mailbox for that client hands
+ * the mail over as FORWARDED_MAIL records (client id: the recipient, payload:
+ * the kept body) instead of keeping more. Only the node with the client
+ * delivers them.
+ */
+
+package io.chatserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+final class Cluster {
+    private static final byte[] LINK_MAGIC = {(byte) 0xC7, 'N', 'O', 'D'};
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final long MIN_RETRY_DELAY_MS = 500;
+    private static final long MAX_RETRY_DELAY_MS = 10_000;
+    private static final byte[] NO_ADDRESS = new byte[0];
+
+    // Relay record type for mail kept on one node for a client that is now on another
+    static final byte FORWARDED_MAIL = 0x30;
+
+    private final String nodeId;
+    private final Map<String, InetSocketAddress> members;
+    // Tells this run of the node from an earlier one that used the same sequences
+    private final long epoch = System.currentTimeMillis();
+
+    // Relayed bodies: sequence s is at ring[s % ring.length]. Guarded by this.
+    private final byte[][] ring;
+    private long lastSequence;
+
+    // Delivery state per origin node, keyed by node id
+    private final Map<String, Origin> origins = new ConcurrentHashMap<>();
+
+    private Cluster(String nodeId, Map<String, InetSocketAddress> members, int bufferSize) {
+        this.nodeId = nodeId;
+        this.members = members;
+        this.ring = new byte[bufferSize][];
+    }
+
+    // Parse "id@host:port,id@host:port,..." and start listening and dialing. Every node is
+    // started with the same list and finds its own address in it by id.
+    static Cluster start(String nodeId, String memberList, int bufferSize) throws IOException {
+        Map<String, InetSocketAddress> members = new LinkedHashMap<>();
+        for (String member : memberList.split(",")) {
+            int at = member.indexOf('@');
+            int colon = member.lastIndexOf(':');
+            if (at <= 0 || colon < at) {
+                throw new IllegalArgumentException("Invalid cluster member: " + member + " (expected id@host:port)");
+            }
+            members.put(member.substring(0, at),
+                    new InetSocketAddress(member.substring(at + 1, colon), Integer.parseInt(member.substring(colon + 1))));
+        }
+        InetSocketAddress own = members.get(nodeId);
+        if (own == null) {
+            throw new IllegalArgumentException("Node " + nodeId + " is not in the cluster member list");
+        }
+
+        Cluster cluster = new Cluster(nodeId, members, bufferSize);
+        ServerSocket server = new ServerSocket();
+        server.bind(own);
+        Thread acceptor = new Thread(() -> cluster.accept(server), "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (Map.Entry<String, InetSocketAddress> member : members.entrySet()) {
+            if (!member.getKey().equals(nodeId)) {
+                Thread link = new Thread(() -> cluster.dial(member.getKey(), member.getValue()), "cluster-link-" + member.getKey());
+                link.setDaemon(true);
+                link.start();
+            }
+        }
+        ServerLog.info("Cluster node " + nodeId + " listening for peers on ", own);
+        return cluster;
+    }
+
+    // Queue a message a local client sent for every peer. Called on the fan-out thread; the
+    // type is the request type, so the peer can tell global, room and direct messages apart.
+    void relay(byte type, Frame origin, byte[] target, byte[] payload) {
+        ByteBuffer body = ByteBuffer.allocate(
+                FrameCodec.bodyLength(FrameCodec.VERSION, origin.clientIdBytes, origin.address, target, payload));
+        FrameCodec.encode(body, FrameCodec.VERSION, type, origin.timestamp, 0, origin.clientIdBytes, origin.address,
+                target, payload);
+        enqueue(body);
+    }
+
+    // Tell the peers a client identified itself here, so they stop keeping mail for it
+    void identified(Frame origin) {
+        relay(FrameCodec.IDENTIFY, origin, null, new byte[0]);
+    }
+
+    // Pass a body kept in this node's mailbox to whichever peer the client is connected to
+    void forwardMail(String clientId, ByteBuffer mail) {
+        byte[] recipient = clientId.getBytes(StandardCharsets.US_ASCII);
+        byte[] payload = new byte[mail.remaining()];
+        mail.get(payload);
+        ByteBuffer body = ByteBuffer.allocate(FrameCodec.bodyLength(FrameCodec.VERSION, recipient, NO_ADDRESS, null, payload));
+        FrameCodec.encode(body, FrameCodec.VERSION, FORWARDED_MAIL, System.currentTimeMillis(), 0, recipient, NO_ADDRESS,
+                null, payload);
+        enqueue(body);
+    }
+
+    private void enqueue(ByteBuffer body) {
+        synchronized (this) {
+            long sequence = ++lastSequence;
+            body.putLong(FrameCodec.SEQUENCE_OFFSET, sequence);
+            ring[(int) (sequence % ring.length)] = body.array();
+            notifyAll();
+        }
+    }
+
+    // Keep a link to one peer up, reconnecting with a growing delay while it is unreachable
+    private void dial(String peer, InetSocketAddress address) {
+        long delay = MIN_RETRY_DELAY_MS;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(address, CONNECT_TIMEOUT_MS);
+                socket.setTcpNoDelay(true);
+                socket.setKeepAlive(true);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+                // magic | u8 idLength | id | i64 epoch | nonce, answered by nonce | i64 last sequence seen
+                byte[] id = nodeId.getBytes(StandardCharsets.UTF_8);
+                byte[] clientNonce = SessionCipher.newNonce();
+                out.write(LINK_MAGIC);
+                out.writeByte(id.length);
+                out.write(id);
+                out.writeLong(epoch);
+                out.write(clientNonce);
+                out.flush();
+                byte[] serverNonce = new byte[SessionCipher.NONCE_LENGTH];
+                in.readFully(serverNonce);
+                long lastSeen = in.readLong();
+                SessionCipher cipher = new SessionCipher(clientNonce, serverNonce, false);
+
+                long next;
+                synchronized (this) {
+                    next = lastSeen < 0 ? lastSequence + 1 : lastSeen + 1;
+                }
+                ServerLog.info("Cluster link is up to ", peer);
+                delay = MIN_RETRY_DELAY_MS;
+                stream(peer, out, cipher, next);
+            } catch (IOException | GeneralSecurityException e) {
+                ServerLog.warn("Cluster link failed to " + peer + ": ", e.getMessage());
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+            delay = Math.min(delay * 2, MAX_RETRY_DELAY_MS);
+        }
+    }
+
+    // Write relayed bodies from the given sequence on, flushing whenever the link has caught up
+    private void stream(String peer, DataOutputStream out, SessionCipher cipher, long next)
+            throws IOException, GeneralSecurityException, InterruptedException {
+        while (true) {
+            byte[] body = null;
+            long skipped = 0;
+            synchronized (this) {
+                long oldest = Math.max(1, lastSequence - ring.length + 1);
+                if (next < oldest) {
+                    skipped = oldest - next;
+                    next = oldest;
+                }
+                if (next <= lastSequence) {
+                    body = ring[(int) (next % ring.length)];
+                }
+            }
+            if (skipped > 0) {
+                ServerLog.warn("Cluster relay buffer overflowed, messages lost for " + peer + ": ", skipped);
+            }
+            if (body == null) {
+                out.flush();
+                synchronized (this) {
+                    while (next > lastSequence) {
+                        wait();
+                    }
+                }
+                continue;
+            }
+            ByteBuffer sealed = cipher.seal(body);
+            out.write(sealed.array(), 0, sealed.limit());
+            Metrics.relayedOut.increment();
+            next++;
+        }
+    }
+
+    private void accept(ServerSocket server) {
+        while (true) {
+            try {
+                Socket socket = server.accept();
+                Thread reader = new Thread(() -> receive(socket), "cluster-in-" + socket.getRemoteSocketAddress());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                ServerLog.error("Could not accept a cluster link", e);
+            }
+        }
+    }
+
+    // Read the bodies a peer relays and fan them out to the clients of this node
+    private void receive(Socket socket) {
+        String peer = String.valueOf(socket.getRemoteSocketAddress());
+        try (Socket link = socket) {
+            link.setTcpNoDelay(true);
+            link.setKeepAlive(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(link.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(link.getOutputStream()));
+            byte[] magic = new byte[LINK_MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, LINK_MAGIC)) {
+                throw new ProtocolException("Not a cluster link");
+            }
+            byte[] id = new byte[in.readUnsignedByte()];
+            in.readFully(id);
+            peer = new String(id, StandardCharsets.UTF_8);
+            if (peer.equals(nodeId) || !members.containsKey(peer)) {
+                throw new ProtocolException("Unknown cluster node " + peer);
+            }
+            long linkEpoch = in.readLong();
+            byte[] clientNonce = new byte[SessionCipher.NONCE_LENGTH];
+            in.readFully(clientNonce);
+
+            Origin origin = origins.computeIfAbsent(peer, name -> new Origin());
+            byte[] serverNonce = SessionCipher.newNonce();
+            out.write(serverNonce);
+            out.writeLong(origin.resume(linkEpoch));
+            out.flush();
+            SessionCipher cipher = new SessionCipher(clientNonce, serverNonce);
+            ServerLog.info("Cluster link is up from ", peer);
+
+            CipherContext crypto = new CipherContext();
+            Frame frame = new Frame();
+            byte[] encrypted = new byte[256];
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    ServerLog.info("Cluster link closed from ", peer);
+                    return;
+                }
+                if (length <= 0 || length > FrameCodec.MAX_FRAME_LENGTH + SessionCipher.TAG_LENGTH) {
+                    throw new ProtocolException("Invalid frame length " + length);
+                }
+                if (encrypted.length < length) {
+                    encrypted = new byte[Math.max(length, encrypted.length * 2)];
+                }
+                in.readFully(encrypted, 0, length);
+                ByteBuffer body = frame.plaintextBuffer(length);
+                cipher.open(ByteBuffer.wrap(encrypted, 0, length), body);
+                body.flip();
+                FrameCodec.decode(body, frame, FrameCodec.VERSION);
+                origin.deliver(peer, linkEpoch, frame, crypto);
+            }
+        } catch (Exception e) {
+            ServerLog.warn("Cluster link failed from " + peer + ": ", e.getMessage());
+        }
+    }
+
+    // What has been delivered from one origin node. An origin has one live link at a time,
+    // but the old one may still be draining while it reconnects, so delivery is serialized.
+    private static final class Origin {
+        private long epoch;
+        private long lastSeen = -1; // -1 until the first message of this epoch
+
+        // The last sequence delivered from this run of the origin, or -1 if it is new here
+        synchronized long resume(long linkEpoch) {
+            if (linkEpoch != epoch) {
+                epoch = linkEpoch;
+                lastSeen = -1;
+            }
+            return lastSeen;
+        }
+
+        synchronized void deliver(String peer, long linkEpoch, Frame frame, CipherContext crypto) {
+            if (linkEpoch != epoch || frame.sequence <= lastSeen) {
+                Metrics.relayDuplicates.increment();
+                return;
+            }
+            if (lastSeen >= 0 && frame.sequence != lastSeen + 1) {
+                ServerLog.warn("Cluster messages lost from " + peer + ": ", frame.sequence - lastSeen - 1);
+            }
+            lastSeen = frame.sequence;
+            Metrics.relayedIn.increment();
+            ChatServer.deliverRelayed(frame, crypto);
+        }
+    }
+}
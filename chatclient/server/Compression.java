@@ -0,0 +1,151 @@
+/*
+ * The MIT License (MIT)
+Copyright © 2023 <copyright holders>
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this 
+software and associated documentation files (the “Software”), to deal in the Software 
+without restriction, including without limitation the rights to use, copy, modify, merge, 
+publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons 
+to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies 
+or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR 
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE 
+FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR 
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+DEALINGS IN THE SOFTWARE.
+ */
+
+/*
+ * Compression
+ * Deflate for the frame bodies of connections that negotiated it. A compressed
+ * body keeps its type byte, with COMPRESSED set, and deflates the rest. Each
+ * body is compressed on its own against a preset dictionary of common chat
+ * text, so one compressed body can be shared by every recipient, and a message
+ * dropped for a slow consumer never breaks the next one.
+ *
+ * Creating a Deflater allocates its native window and hash tables, so
+ * deflaters are pooled and reset between messages instead.
+ */
+
+package io.chatserver;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+final class Compression {
+    // Shared with the ChatClient extension, byte for byte. Deflate finds the end of the
+    // dictionary cheapest to refer to, so the likeliest strings come last.
+    static final byte[] DICTIONARY = (
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            + "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA////////////////"
+            + "data:image/gif;base64,R0lGODlh" + "data:image/jpeg;base64,/9j/4AAQSkZJRgABAQAAAQABAAD/"
+            + "data:image/png;base64,iVBORw0KGgoAAAANSUhEUgAA"
+            + "{\"type\":\"\",\"text\":\"\",\"name\":\"\",\"id\":\"\",\"time\":\"\"} "
+            + "https://www. .com/ .html?id= "
+            + "Thank you so much! Good morning, good night. How are you doing today? "
+            + "I don't know what you mean, can you tell me more about it? "
+            + "Yes, I think that would be great. No problem, see you later. "
+            + "Please let me know when you are there, and what time it is. "
+            + "The message is in the chat, with the image and the link. "
+            + "that this with have from they will would there their what about which when "
+            + "what was just like it's I'm you're and the for you that is in to of a "
+    ).getBytes(StandardCharsets.UTF_8);
+
+    static final int DEFAULT_THRESHOLD = 256;
+
+    // Bodies shorter than this are sent as they are; set from --compression-threshold
+    static int threshold = DEFAULT_THRESHOLD;
+
+    private static final Queue<Compression> POOL = new ConcurrentLinkedQueue<>();
+
+    // The fastest level: on chat text it costs a few percent of ratio and saves most of the CPU
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private byte[] output = new byte[1024];
+
+    private Compression() {
+    }
+
+    // A compressed copy of the body, or null when it is under the threshold or would not
+    // shrink. The body's position is left alone, so it may be a mapped log record.
+    static byte[] compress(ByteBuffer body) {
+        if (body.remaining() < threshold) {
+            return null;
+        }
+        long start = System.nanoTime();
+        Compression compression = POOL.poll();
+        if (compression == null) {
+            compression = new Compression();
+        }
+        try {
+            return compression.deflate(body);
+        } finally {
+            POOL.offer(compression);
+            Metrics.compress.record(System.nanoTime() - start);
+        }
+    }
+
+    private byte[] deflate(ByteBuffer body) {
+        int length = body.remaining();
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(body.duplicate().position(body.position() + 1));
+            deflater.finish();
+            output[0] = (byte) (body.get(body.position()) | FrameCodec.COMPRESSED);
+            int written = 1;
+            while (!deflater.finished()) {
+                if (written >= length) {
+                    return null;
+                }
+                if (written == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                written += deflater.deflate(output, written, output.length - written);
+            }
+            return written < length ? Arrays.copyOf(output, written) : null;
+        } finally {
+            // Also drops the reference to the input until the next message
+            deflater.reset();
+        }
+    }
+
+    // Inflate a compressed body into the frame's scratch buffer, clearing the flag on its
+    // type byte. The result is bounded like any frame, so a small body cannot expand without limit.
+    static ByteBuffer inflate(ByteBuffer compressed, Frame frame) throws ProtocolException {
+        long start = System.nanoTime();
+        Inflater inflater = frame.inflater();
+        ByteBuffer body = frame.inflatedBuffer(Math.min(compressed.remaining() * 4, FrameCodec.MAX_FRAME_LENGTH));
+        try {
+            inflater.setDictionary(DICTIONARY);
+            body.put((byte) (compressed.get() & ~FrameCodec.COMPRESSED));
+            inflater.setInput(compressed);
+            while (!inflater.finished()) {
+                if (!body.hasRemaining()) {
+                    if (body.capacity() >= FrameCodec.MAX_FRAME_LENGTH) {
+                        throw new ProtocolException("Compressed body exceeds " + FrameCodec.MAX_FRAME_LENGTH + " bytes");
+                    }
+                    body = frame.growInflatedBuffer(Math.min(body.capacity() * 2, FrameCodec.MAX_FRAME_LENGTH));
+                }
+                if (inflater.inflate(body) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new ProtocolException("Truncated compressed body");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Invalid compressed body: " + e.getMessage());
+        } finally {
+            inflater.reset();
+            Metrics.inflate.record(System.nanoTime() - start);
+        }
+        return body.flip();
+    }
+}
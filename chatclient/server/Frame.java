@@ -0,0 +1,122 @@
+/*
+ * The MIT License (MIT)
+Copyright © 2023 <copyright holders>
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this 
+software and associated documentation files (the “Software”), to deal in the Software 
+without restriction, including without limitation the rights to use, copy, modify, merge, 
+publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons 
+to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies 
+or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR 
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE 
+FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR 
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+DEALINGS IN THE SOFTWARE.
+ */
+
+/*
+ * Frame
+ * One decoded client request, whether it arrived as a legacy Base64 text
+ * line or as a binary frame. Each connection (or event loop) reuses a single
+ * instance, together with its plaintext and inflate scratch buffers.
+ */
+
+package io.chatserver;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.zip.Inflater;
+
+final class Frame {
+    // Same pattern the ChatClient extension uses for its text timestamps
+    private static final DateTimeFormatter TIMESTAMP_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    byte type;
+    long timestamp;          // epoch millis, set by binary clients
+    String timestampText;    // set by legacy clients, which send a formatted time
+    long sequence;           // version 2 frames only
+    String clientId;
+    byte[] clientIdBytes;
+    byte[] address;          // the client's own view of its IP address
+    String target;           // room name or recipient id, for addressed frames only
+    byte[] payload;          // UTF-8 text
+
+    private ByteBuffer plaintext;
+    private ByteBuffer inflated;
+    private Inflater inflater;
+
+    // Scratch buffer for decrypting a frame body, allocated and grown on demand
+    ByteBuffer plaintextBuffer(int size) {
+        if (plaintext == null || plaintext.capacity() < size) {
+            plaintext = ByteBuffer.allocate(Math.max(size, plaintext == null ? 256 : plaintext.capacity() * 2));
+        }
+        plaintext.clear();
+        return plaintext;
+    }
+
+    // Scratch buffer for inflating a compressed body, allocated on demand like the plaintext one
+    ByteBuffer inflatedBuffer(int size) {
+        if (inflated == null || inflated.capacity() < size) {
+            inflated = ByteBuffer.allocate(Math.max(size, inflated == null ? 256 : inflated.capacity() * 2));
+        }
+        inflated.clear();
+        return inflated;
+    }
+
+    // Replace the inflate buffer with a larger one that keeps what was inflated so far
+    ByteBuffer growInflatedBuffer(int size) {
+        ByteBuffer larger = ByteBuffer.allocate(size);
+        inflated.flip();
+        larger.put(inflated);
+        inflated = larger;
+        return larger;
+    }
+
+    // Raw deflate, created when the connection sends its first compressed frame
+    Inflater inflater() {
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        return inflater;
+    }
+
+    // Copy the decoded fields by reference; decoding replaces the arrays instead of reusing them
+    void copyFrom(Frame frame) {
+        type = frame.type;
+        timestamp = frame.timestamp;
+        timestampText = frame.timestampText;
+        sequence = frame.sequence;
+        clientId = frame.clientId;
+        clientIdBytes = frame.clientIdBytes;
+        address = frame.address;
+        target = frame.target;
+        payload = frame.payload;
+    }
+
+    String timestampText() {
+        return timestampText != null ? timestampText : TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(timestamp));
+    }
+
+    String addressText() {
+        try {
+            return InetAddress.getByAddress(address).getHostAddress();
+        } catch (UnknownHostException e) {
+            return "";
+        }
+    }
+
+    String payloadText() {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * The MIT License (MIT)
+Copyright © 2023 <copyright holders>
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this 
+software and associated documentation files (the “Software”), to deal in the Software 
+without restriction, including without limitation the rights to use, copy, modify, merge, 
+publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons 
+to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies 
+or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR 
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE 
+FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR 
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+DEALINGS IN THE SOFTWARE.
+ */
+
+/*
+ * FrameCodec
+ * Wire formats understood by the server. Legacy clients send newline-
+ * terminated Base64 lines of "method,timestamp,ip,clientId,message". Newer
+ * clients open with a hello and then exchange length-prefixed binary frames:
+ *
+ *   hello:  magic "\xC7CHT" | u8 version | u16 features
+ *   frame:  u32 length | AES(body)
+ *   body:   u8 type | i64 timestamp | i64 sequence | u8 idLength | id | u8 addressLength | address | payload
+ *
+ * Version 1 bodies have no sequence. The server sets it on logged messages;
+ * clients send the last sequence they have seen.
+ *
+ * With the AES-GCM feature the server follows its hello reply with a 16-byte
+ * nonce, the client answers with its own, and frames are AES-GCM under the
+ * session key instead of AES under the shared key.
+ *
+ * With the deflate feature a body may be u8 (type | 0x80) | deflate(rest of body),
+ * compressed against a preset dictionary; either side compresses only bodies
+ * above its threshold.
+ *
+ * Frames addressed to a room or a client start their payload with
+ * u8 targetLength | target, where the target is the room name or client id.
+ *
+ * Bodies are read and written directly on ByteBuffers.
+ */
+
+package io.chatserver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+final class FrameCodec {
+    static final byte[] HELLO_MAGIC = {(byte) 0xC7, 'C', 'H', 'T'};
+    static final int HELLO_LENGTH = 7;
+    // Version 2 adds an i64 sequence after the timestamp; version 1 peers are still served
+    static final byte VERSION = 2;
+    // Feature flags in the hello. With heartbeats the client pings while idle and the server
+    // answers with a pong, so both sides can drop a connection that has gone quiet.
+    static final int FEATURE_HEARTBEAT = 1;
+    // With AES-GCM both sides send a nonce after the hello and switch to a per-session key (see SessionCipher)
+    static final int FEATURE_GCM = 2;
+    // With deflate either side may send a body compressed (see Compression)
+    static final int FEATURE_DEFLATE = 4;
+    static final int SUPPORTED_FEATURES = FEATURE_HEARTBEAT | FEATURE_GCM | FEATURE_DEFLATE;
+    static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    // Frame types sent by clients
+    static final byte SEND_MESSAGE = 1;
+    static final byte SEND_MESSAGE_WITH_DETAILS = 2;
+    static final byte JOIN_ROOM = 3;
+    static final byte LEAVE_ROOM = 4;
+    static final byte SEND_ROOM_MESSAGE = 5;
+    static final byte SEND_DIRECT_MESSAGE = 6;
+    static final byte PRESENCE_QUERY = 7;
+    static final byte ONLINE_COUNT_QUERY = 8;
+    static final byte IDENTIFY = 9;
+    static final byte HISTORY_QUERY = 10;     // sequence is the last one the client has seen
+    static final byte PING = 11;
+    // Frame types sent by the server
+    static final byte DELIVER = 16;
+    static final byte ROOM_DELIVER = 17;
+    static final byte DIRECT_DELIVER = 18;
+    static final byte PRESENCE = 19;          // target is the queried id, payload is one byte: 1 when online
+    static final byte ONLINE_COUNT = 20;      // payload is an i32 count
+    static final byte HISTORY_END = 21;       // sequence is the last one replayed, payload is 1 when more follows
+    static final byte PONG = 22;
+
+    // Set on the type byte of a compressed body, whose remaining bytes are raw deflate
+    static final int COMPRESSED = 0x80;
+
+    // Where a version 2 body keeps its sequence
+    static final int SEQUENCE_OFFSET = 1 + 8;
+
+    // Legacy method names, indexed by frame type
+    private static final String[] METHOD_NAMES = {
+            null, "SendMessage", "SendMessageWithDetails", "JoinRoom", "LeaveRoom", "SendRoomMessage",
+            "SendDirectMessage", "IsOnline", "RequestOnlineCount", "Identify", "RequestHistory"
+    };
+
+    private FrameCodec() {
+    }
+
+    // Answer a client hello with the highest common version and the features both sides support
+    static byte[] helloReply(byte[] hello, int supportedFeatures) throws IOException {
+        for (int i = 0; i < HELLO_MAGIC.length; i++) {
+            if (hello[i] != HELLO_MAGIC[i]) {
+                throw new ProtocolException("Invalid protocol hello");
+            }
+        }
+        int features = helloFeatures(hello) & supportedFeatures;
+        byte[] reply = hello.clone();
+        reply[4] = (byte) Math.min(hello[4] & 0xFF, VERSION);
+        reply[5] = (byte) (features >> 8);
+        reply[6] = (byte) features;
+        return reply;
+    }
+
+    // Version 0 means the client asked to keep the legacy line format
+    static int helloVersion(byte[] hello) {
+        return hello[4] & 0xFF;
+    }
+
+    static int helloFeatures(byte[] hello) {
+        return (hello[5] & 0xFF) << 8 | (hello[6] & 0xFF);
+    }
+
+    // Read the fields of a decrypted binary body
+    static void decode(ByteBuffer body, Frame frame, int version) {
+        frame.type = body.get();
+        frame.timestamp = body.getLong();
+        frame.timestampText = null;
+        frame.sequence = version >= 2 ? body.getLong() : 0;
+
+        // Clients send the same id in every frame, so keep the previous String when it matches
+        int idLength = body.get() & 0xFF;
+        if (!sameBytes(body, idLength, frame.clientIdBytes)) {
+            frame.clientIdBytes = new byte[idLength];
+            body.get(frame.clientIdBytes);
+            frame.clientId = new String(frame.clientIdBytes, StandardCharsets.US_ASCII);
+        } else {
+            body.position(body.position() + idLength);
+        }
+
+        frame.address = new byte[body.get() & 0xFF];
+        body.get(frame.address);
+        frame.target = null;
+        if (hasTarget(frame.type)) {
+            byte[] target = new byte[body.get() & 0xFF];
+            body.get(target);
+            frame.target = new String(target, StandardCharsets.UTF_8);
+        }
+        frame.payload = new byte[body.remaining()];
+        body.get(frame.payload);
+    }
+
+    // The target is null for frames that are not addressed to a room or a client
+    static int bodyLength(int version, byte[] clientId, byte[] address, byte[] target, byte[] payload) {
+        int targetLength = target == null ? 0 : 1 + target.length;
+        int sequenceLength = version >= 2 ? 8 : 0;
+        return 1 + 8 + sequenceLength + 1 + clientId.length + 1 + address.length + targetLength + payload.length;
+    }
+
+    static void encode(ByteBuffer body, int version, byte type, long timestamp, long sequence, byte[] clientId,
+            byte[] address, byte[] target, byte[] payload) {
+        body.put(type);
+        body.putLong(timestamp);
+        if (version >= 2) {
+            body.putLong(sequence);
+        }
+        body.put((byte) clientId.length).put(clientId);
+        body.put((byte) address.length).put(address);
+        if (target != null) {
+            body.put((byte) target.length).put(target);
+        }
+        body.put(payload);
+    }
+
+    static boolean hasTarget(byte type) {
+        return type == JOIN_ROOM || type == LEAVE_ROOM || type == SEND_ROOM_MESSAGE || type == SEND_DIRECT_MESSAGE
+                || type == PRESENCE_QUERY || type == ROOM_DELIVER || type == PRESENCE;
+    }
+
+    static String methodName(byte type) {
+        return type > 0 && type < METHOD_NAMES.length ? METHOD_NAMES[type] : "Unknown";
+    }
+
+    // Parse a decrypted legacy line: "method,timestamp,ip,clientId,message". Methods
+    // with a target carry it as the message, or as "target,message" when they also
+    // carry text (SendRoomMessage, SendDirectMessage).
+    static void decodeLine(String text, Frame frame) throws ProtocolException {
+        String[] parts = text.split(",", 5);
+        if (parts.length < 5) {
+            throw new ProtocolException("Expected 5 fields, got " + parts.length);
+        }
+        frame.type = SEND_MESSAGE;
+        for (byte type = 1; type < METHOD_NAMES.length; type++) {
+            if (METHOD_NAMES[type].equals(parts[0])) {
+                frame.type = type;
+            }
+        }
+        frame.timestamp = 0;
+        frame.timestampText = parts[1];
+        frame.sequence = 0;
+        frame.address = literalAddress(parts[2]);
+        frame.clientId = parts[3];
+        frame.clientIdBytes = parts[3].getBytes(StandardCharsets.US_ASCII);
+        
+        String message = parts[4];
+        frame.target = null;
+        if (frame.type == SEND_ROOM_MESSAGE || frame.type == SEND_DIRECT_MESSAGE) {
+            int comma = message.indexOf(',');
+            if (comma < 0) {
+                throw new ProtocolException("No target before the message");
+            }
+            frame.target = message.substring(0, comma);
+            message = message.substring(comma + 1);
+        } else if (hasTarget(frame.type)) {
+            frame.target = message;
+            message = "";
+        }
+        // Binary frames carry the target behind a one-byte length
+        if (frame.target != null && frame.target.getBytes(StandardCharsets.UTF_8).length > 255) {
+            throw new ProtocolException("Target exceeds 255 bytes");
+        }
+        frame.payload = message.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Convert an IP literal without ever falling back to a DNS lookup
+    private static byte[] literalAddress(String ip) {
+        if (ip.indexOf(':') < 0 && !ip.matches("\\d{1,3}(\\.\\d{1,3}){3}")) {
+            return new byte[0];
+        }
+        try {
+            return InetAddress.getByName(ip).getAddress();
+        } catch (IOException e) {
+            return new byte[0];
+        }
+    }
+
+    private static boolean sameBytes(ByteBuffer body, int length, byte[] previous) {
+        if (previous == null || previous.length != length) {
+            return false;
+        }
+        int start = body.position();
+        for (int i = 0; i < length; i++) {
+            if (body.get(start + i) != previous[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ * The MIT License (MIT)
+Copyright © 2023 <copyright holders>
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this 
+software and associated documentation files (the “Software”), to deal in the Software 
+without restriction, including without limitation the rights to use, copy, modify, merge, 
+publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons 
+to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies 
+or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR 
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE 
+FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR 
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+DEALINGS IN THE SOFTWARE.
+ */
+
+/*
+ * Mailboxes
+ * Store-and-forward for clients that are offline. A client that identified
+ * itself and then disconnected gets a mailbox; direct messages for it, and
+ * room messages for the rooms it was in when the server keeps no history,
+ * wait there until it identifies itself again and are then queued for it in
+ * one go. Messages older than the TTL are dropped, and a mailbox that stays
+ * empty for the TTL is forgotten.
+ *
+ * A mailbox holds its messages in one byte array of records, so a dormant
+ * client costs one object and, once it has mail, one array. When the arrays
+ * together exceed the memory budget, a background thread appends the least
+ * recently used ones to a file per mailbox and frees them.
+ *
+ *   record: i64 stored at (epoch millis) | u32 bodyLength | body
+ *   body:   the version 2 frame body of the DIRECT_DELIVER or ROOM_DELIVER message
+ *   file:   <n>.mbox, the spilled records of one mailbox, oldest first
+ *
+ * Mailboxes live for one run of the server: spill files left over from an
+ * earlier run are deleted on startup.
+ */
+
+package io.chatserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+final class Mailboxes {
+    private static final int RECORD_HEADER = 12;
+    private static final int INITIAL_BUFFER = 256;
+    private static final long SWEEP_MILLIS = 10_000;
+    private static final String SUFFIX = ".mbox";
+
+    private final Path directory;
+    private final long memoryBudget;
+    private final long ttlMillis;
+    private final int maxMessages;
+
+    // Offline client id -> mailbox; a mailbox is removed when its client comes back
+    private final Map<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    // Room -> mailboxes of members that were in it when they went offline
+    private final Map<String, Set<Mailbox>> roomMembers = new ConcurrentHashMap<>();
+    private final AtomicLong memoryUsed = new AtomicLong();
+    private final AtomicLong nextFile = new AtomicLong();
+    private final AtomicBoolean spillRequested = new AtomicBoolean();
+
+    private Mailboxes(Path directory, long memoryBudget, long ttlMillis, int maxMessages) {
+        this.directory = directory;
+        this.memoryBudget = memoryBudget;
+        this.ttlMillis = ttlMillis;
+        this.maxMessages = maxMessages;
+    }
+
+    static Mailboxes open(Path directory, long memoryBudget, long ttlMillis, int maxMessages) throws IOException {
+        Files.createDirectories(directory);
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (file.getFileName().toString().endsWith(SUFFIX)) {
+                    Files.delete(file);
+                }
+            }
+        }
+        Mailboxes mailboxes = new Mailboxes(directory, memoryBudget, ttlMillis, maxMessages);
+        Thread spiller = new Thread(mailboxes::maintain, "mailbox-spill");
+        spiller.setDaemon(true);
+        spiller.start();
+        return mailboxes;
+    }
+
+    int count() {
+        return mailboxes.size();
+    }
+
+    long memoryUsed() {
+        return memoryUsed.get();
+    }
+
+    // The client's last session closed; keep its mail from now on
+    void offline(String clientId, Set<String> rooms) {
+        Mailbox mailbox = new Mailbox(clientId, rooms.toArray(new String[0]));
+        if (mailboxes.putIfAbsent(clientId, mailbox) != null) {
+            return;
+        }
+        for (String room : mailbox.rooms) {
+            roomMembers.computeIfAbsent(room, name -> ConcurrentHashMap.newKeySet()).add(mailbox);
+        }
+    }
+
+    // Keep a direct message for a client that is not connected, if it has a mailbox here.
+    // A client whose mail was delivered while this was being stored is passed to cameBack,
+    // so the caller can hand the message to its new session instead.
+    void storeDirect(String clientId, OutboundMessage message, Consumer<String> cameBack) {
+        store(clientId, message.body(FrameCodec.VERSION), cameBack);
+    }
+
+    // Keep a body forwarded by the node that held the client's mail
+    void store(String clientId, byte[] body, Consumer<String> cameBack) {
+        Mailbox mailbox = mailboxes.get(clientId);
+        if (mailbox != null) {
+            store(mailbox, body, cameBack);
+        }
+    }
+
+    // Keep a room message for every offline member of the room
+    void storeRoom(String room, OutboundMessage message, Consumer<String> cameBack) {
+        Set<Mailbox> members = roomMembers.get(room);
+        if (members == null || members.isEmpty()) {
+            return;
+        }
+        byte[] body = message.body(FrameCodec.VERSION);
+        for (Mailbox mailbox : members) {
+            store(mailbox, body, cameBack);
+        }
+    }
+
+    private void store(Mailbox mailbox, byte[] body, Consumer<String> cameBack) {
+        if (!mailbox.append(body, System.currentTimeMillis())) {
+            cameBack.accept(mailbox.clientId);
+            return;
+        }
+        if (memoryUsed.get() > memoryBudget && spillRequested.compareAndSet(false, true)) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    // The client identified itself again: hand each waiting body to the sink, oldest first
+    void deliver(String clientId, Consumer<ByteBuffer> sink) {
+        Mailbox mailbox = mailboxes.remove(clientId);
+        if (mailbox != null) {
+            forget(mailbox);
+            mailbox.drain(sink);
+        }
+    }
+
+    private void forget(Mailbox mailbox) {
+        for (String room : mailbox.rooms) {
+            roomMembers.computeIfPresent(room, (name, members) -> {
+                members.remove(mailbox);
+                return members.isEmpty() ? null : members;
+            });
+        }
+    }
+
+    // Spill thread: spill when over the memory budget and expire old mail every few seconds
+    private void maintain() {
+        long nextSweep = System.currentTimeMillis() + SWEEP_MILLIS;
+        while (true) {
+            try {
+                synchronized (this) {
+                    long now;
+                    while (!spillRequested.get() && (now = System.currentTimeMillis()) < nextSweep) {
+                        wait(nextSweep - now);
+                    }
+                }
+                if (spillRequested.getAndSet(false)) {
+                    spill();
+                }
+                if (System.currentTimeMillis() >= nextSweep) {
+                    expire();
+                    nextSweep = System.currentTimeMillis() + SWEEP_MILLIS;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                ServerLog.error("Mailbox maintenance failed", e);
+            }
+        }
+    }
+
+    // Spill the mailboxes written to least recently until a quarter of the budget is free again
+    private void spill() {
+        List<Mailbox> candidates = new ArrayList<>();
+        for (Mailbox mailbox : mailboxes.values()) {
+            if (mailbox.buffered > 0) {
+                candidates.add(mailbox);
+            }
+        }
+        candidates.sort(Comparator.comparingLong(mailbox -> mailbox.lastStored));
+        long target = memoryBudget - memoryBudget / 4;
+        for (Mailbox mailbox : candidates) {
+            if (memoryUsed.get() <= target) {
+                break;
+            }
+            try {
+                mailbox.spill();
+            } catch (IOException e) {
+                ServerLog.error("Could not spill the mailbox of " + mailbox.clientId, e);
+                return;
+            }
+        }
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        for (Mailbox mailbox : mailboxes.values()) {
+            if (mailbox.expire(now) && mailboxes.remove(mailbox.clientId, mailbox)) {
+                forget(mailbox);
+            }
+        }
+    }
+
+    private final class Mailbox {
+        final String clientId;
+        final String[] rooms;
+        // Starts when the client goes offline, so an empty mailbox is forgotten after the TTL
+        volatile long lastStored = System.currentTimeMillis();
+        // Bytes held in memory, read by the spill thread to pick what to spill
+        volatile int buffered;
+
+        // Records from start to end are in memory, after any spilled to the file
+        private byte[] buffer;
+        private int start;
+        private int end;
+        private int count;
+        private Path file;
+        private int spilledCount;
+        private long spilledNewest;
+        // Set once the mail is delivered or the mailbox expired; a late store goes to the session instead
+        private boolean closed;
+
+        Mailbox(String clientId, String[] rooms) {
+            this.clientId = clientId;
+            this.rooms = rooms;
+        }
+
+        // False if the mailbox was closed first; a full mailbox drops the message
+        synchronized boolean append(byte[] body, long now) {
+            if (closed) {
+                return false;
+            }
+            if (count + spilledCount >= maxMessages) {
+                Metrics.mailboxDropped.increment();
+                return true;
+            }
+            int length = RECORD_HEADER + body.length;
+            if (buffer == null || buffer.length - end < length) {
+                grow(length);
+            }
+            ByteBuffer.wrap(buffer, end, length).putLong(now).putInt(body.length).put(body);
+            end += length;
+            count++;
+            buffered = end - start;
+            lastStored = now;
+            Metrics.mailboxStored.increment();
+            return true;
+        }
+
+        // Make room for a record, moving live records to the front before growing
+        private void grow(int length) {
+            int live = end - start;
+            int capacity = buffer == null ? INITIAL_BUFFER : buffer.length;
+            while (capacity < live + length) {
+                capacity *= 2;
+            }
+            if (buffer == null || capacity != buffer.length) {
+                byte[] larger = new byte[capacity];
+                if (buffer != null) {
+                    System.arraycopy(buffer, start, larger, 0, live);
+                }
+                memoryUsed.addAndGet(capacity - (buffer == null ? 0 : buffer.length));
+                buffer = larger;
+            } else {
+                System.arraycopy(buffer, start, buffer, 0, live);
+            }
+            start = 0;
+            end = live;
+        }
+
+        // Append the in-memory records to the spill file and free the buffer
+        synchronized void spill() throws IOException {
+            if (closed || buffer == null || count == 0) {
+                return;
+            }
+            if (file == null) {
+                file = directory.resolve(nextFile.incrementAndGet() + SUFFIX);
+            }
+            try (OutputStream out = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                out.write(buffer, start, end - start);
+            }
+            spilledCount += count;
+            spilledNewest = lastStored;
+            Metrics.mailboxSpilled.add(count);
+            release();
+        }
+
+        // Drop mail older than the TTL; true if the mailbox is empty and has been for the TTL
+        synchronized boolean expire(long now) {
+            long cutoff = now - ttlMillis;
+            if (file != null && spilledNewest <= cutoff) {
+                deleteFile();
+                Metrics.mailboxExpired.add(spilledCount);
+                spilledCount = 0;
+            }
+            while (count > 0 && ByteBuffer.wrap(buffer).getLong(start) <= cutoff) {
+                start += RECORD_HEADER + ByteBuffer.wrap(buffer).getInt(start + 8);
+                count--;
+                Metrics.mailboxExpired.increment();
+            }
+            if (count == 0 && buffer != null) {
+                release();
+            } else {
+                buffered = end - start;
+            }
+            boolean empty = count == 0 && spilledCount == 0;
+            if (empty && lastStored <= cutoff) {
+                closed = true;
+            }
+            return closed;
+        }
+
+        // Hand over the spilled records, then the ones in memory, skipping any past the TTL
+        synchronized void drain(Consumer<ByteBuffer> sink) {
+            closed = true;
+            long cutoff = System.currentTimeMillis() - ttlMillis;
+            if (file != null) {
+                try {
+                    byte[] spilled = Files.readAllBytes(file);
+                    deliver(spilled, 0, spilled.length, cutoff, sink);
+                } catch (IOException e) {
+                    ServerLog.error("Could not read the mailbox of " + clientId, e);
+                }
+                deleteFile();
+            }
+            if (buffer != null) {
+                deliver(buffer, start, end, cutoff, sink);
+                release();
+            }
+        }
+
+        private void deliver(byte[] records, int position, int limit, long cutoff, Consumer<ByteBuffer> sink) {
+            ByteBuffer view = ByteBuffer.wrap(records);
+            while (position < limit) {
+                long storedAt = view.getLong(position);
+                int length = view.getInt(position + 8);
+                int body = position + RECORD_HEADER;
+                position = body + length;
+                if (storedAt <= cutoff) {
+                    Metrics.mailboxExpired.increment();
+                    continue;
+                }
+                sink.accept(ByteBuffer.wrap(records, body, length));
+                Metrics.mailboxDelivered.increment();
+            }
+        }
+
+        private void release() {
+            memoryUsed.addAndGet(-buffer.length);
+            buffer = null;
+            start = 0;
+            end = 0;
+            count = 0;
+            buffered = 0;
+        }
+
+        private void deleteFile() {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                ServerLog.error("Could not delete " + file, e);
+            }
+            file = null;
+        }
+    }
+}
@@ -0,0 +1,408 @@
+/*
+ * The MIT License (MIT)
+Copyright © 2023 <copyright holders>
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this 
+software and associated documentation files (the “Software”), to deal in the Software 
+without restriction, including without limitation the rights to use, copy, modify, merge, 
+publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons 
+to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies 
+or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR 
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE 
+FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR 
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+DEALINGS IN THE SOFTWARE.
+ */
+
+/*
+ * MessageLog
+ * Durable chat history on an append-only log of memory-mapped segments.
+ * Logged messages get their sequence number on the fan-out thread; a single
+ * writer thread appends them in batches, so the broadcast path never waits
+ * for the disk. Replay reads records straight out of the mapped segments.
+ *
+ *   segment: <first sequence>.log, pre-sized to the segment size
+ *   record:  u32 bodyLength | u32 CRC-32 of the body | body
+ *   body:    the version 2 frame body of the DELIVER or ROOM_DELIVER message
+ *
+ * On startup every segment is cut after its last intact record, so a torn write
+ * from a crash is never replayed, and writing continues in a fresh segment.
+ * Within a segment sequences have no gaps: a batch that fails to write is
+ * written again from its first uncommitted message.
+ */
+
+package io.chatserver;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+final class MessageLog {
+    private static final int RECORD_HEADER = 8;
+    private static final int QUEUE_CAPACITY = 1 << 16;
+    private static final int MAX_BATCH = 1024;
+    private static final long RETENTION_CHECK_MILLIS = 60_000;
+    private static final long RETRY_MILLIS = 1000;
+    private static final String SUFFIX = ".log";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long retainBytes;
+    private final long retainMillis;
+
+    // First sequence -> segment, oldest first; replay reads it from any thread
+    private final ConcurrentNavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+    // Sequenced messages waiting for the writer. Sequences are assigned and queued under
+    // one short lock so the writer always sees them in order.
+    private final BlockingQueue<OutboundMessage> pending = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private volatile long lastSequence;
+    private final AtomicLong dropped = new AtomicLong();
+    // Every sequence up to this one is committed and visible to replay
+    private volatile long committedSequence;
+    private volatile boolean failing;
+
+    // Writer thread state
+    private Segment active;
+    private long writtenSequence;
+    private final CRC32 crc = new CRC32();
+
+    private MessageLog(Path directory, int segmentSize, long retainBytes, long retainMillis) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.retainBytes = retainBytes;
+        this.retainMillis = retainMillis;
+    }
+
+    // Recover the log in the directory (creating it if needed) and start the writer
+    static MessageLog open(Path directory, int segmentSize, long retainBytes, long retainMillis) throws IOException {
+        if (segmentSize < 2 * FrameCodec.MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("Segment size must be at least " + 2 * FrameCodec.MAX_FRAME_LENGTH + " bytes");
+        }
+        Files.createDirectories(directory);
+        MessageLog log = new MessageLog(directory, segmentSize, retainBytes, retainMillis);
+        log.recover();
+
+        Thread writer = new Thread(log::writeLoop, "history-writer");
+        writer.setDaemon(true);
+        writer.start();
+        return log;
+    }
+
+    // Give the message the next sequence and queue it for the writer. Never blocks on
+    // the disk: when the writer is too far behind the message stays unlogged (sequence 0).
+    void append(OutboundMessage message) {
+        if (RECORD_HEADER + message.bodyLength(FrameCodec.VERSION) > segmentSize) {
+            ServerLog.warn("Message too large for the history log, not logged: ", message.bodyLength(FrameCodec.VERSION));
+            return;
+        }
+        appendLock.lock();
+        try {
+            if (pending.remainingCapacity() == 0) {
+                if (dropped.incrementAndGet() % 1000 == 1) {
+                    ServerLog.warn("History writer is behind, messages not logged: ", dropped.get());
+                }
+                return;
+            }
+            message.sequence = ++lastSequence;
+            pending.add(message);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    long lastSequence() {
+        return lastSequence;
+    }
+
+    // Whether messages up to the sequence are logged but still waiting for the writer, so a
+    // replay should be asked for again. Not while the writer is failing: they may never come.
+    boolean behind(long sequence) {
+        return committedSequence < sequence && !failing;
+    }
+
+    // Hand the bodies of records after afterSequence, up to maxSequence, to the sink, oldest
+    // first. Room messages are only replayed for the given rooms. The sink gets read-only
+    // views of the mapped segment and must not keep them. Returns the last sequence covered.
+    long replay(long afterSequence, long maxSequence, int limit, Set<String> rooms, Consumer<ByteBuffer> sink) {
+        List<byte[]> roomNames = new ArrayList<>(rooms.size());
+        for (String room : rooms) {
+            roomNames.add(room.getBytes(StandardCharsets.UTF_8));
+        }
+        Long first = segments.floorKey(afterSequence + 1);
+        long last = afterSequence;
+        int count = 0;
+        for (Segment segment : (first == null ? segments : segments.tailMap(first)).values()) {
+            ByteBuffer records = segment.buffer.asReadOnlyBuffer();
+            int end = segment.committed;
+            int position = 0;
+            while (position < end) {
+                int length = records.getInt(position);
+                int bodyStart = position + RECORD_HEADER;
+                position = bodyStart + length;
+                long sequence = records.getLong(bodyStart + FrameCodec.SEQUENCE_OFFSET);
+                if (sequence <= afterSequence) {
+                    continue;
+                }
+                if (sequence > maxSequence || count == limit) {
+                    return last;
+                }
+                records.limit(position).position(bodyStart);
+                if (visible(records, roomNames)) {
+                    sink.accept(records.slice());
+                    count++;
+                }
+                records.clear();
+                last = sequence;
+            }
+        }
+        return last;
+    }
+
+    // Global messages are visible to everyone, room messages to the room's members
+    private static boolean visible(ByteBuffer body, List<byte[]> rooms) {
+        int start = body.position();
+        if (body.get(start) != FrameCodec.ROOM_DELIVER) {
+            return true;
+        }
+        int idLength = body.get(start + FrameCodec.SEQUENCE_OFFSET + 8) & 0xFF;
+        int addressOffset = start + FrameCodec.SEQUENCE_OFFSET + 8 + 1 + idLength;
+        int targetOffset = addressOffset + 1 + (body.get(addressOffset) & 0xFF);
+        int targetLength = body.get(targetOffset) & 0xFF;
+        for (byte[] room : rooms) {
+            if (room.length == targetLength && sameBytes(body, targetOffset + 1, room)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean sameBytes(ByteBuffer buffer, int offset, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (buffer.get(offset + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeLoop() {
+        List<OutboundMessage> batch = new ArrayList<>(MAX_BATCH);
+        long nextRetentionCheck = System.currentTimeMillis() + RETENTION_CHECK_MILLIS;
+        while (true) {
+            try {
+                if (batch.isEmpty()) {
+                    OutboundMessage first = pending.poll(1, TimeUnit.SECONDS);
+                    if (first != null) {
+                        batch.add(first);
+                        pending.drainTo(batch, MAX_BATCH - 1);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    write(batch);
+                    batch.clear();
+                    if (failing) {
+                        ServerLog.info("Message history is being written again");
+                        failing = false;
+                    }
+                }
+                if (System.currentTimeMillis() >= nextRetentionCheck) {
+                    enforceRetention();
+                    nextRetentionCheck = System.currentTimeMillis() + RETENTION_CHECK_MILLIS;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                if (!failing) {
+                    ServerLog.error("Could not write message history", e);
+                }
+                failing = true;
+                // Drop what was written but not committed and retry the rest, so the
+                // sequences already handed out still end up in the log, in order
+                active.written = active.committed;
+                writtenSequence = committedSequence;
+                batch.removeIf(message -> message.sequence <= committedSequence);
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Append a batch, force it to disk once and only then make it visible to replay
+    private void write(List<OutboundMessage> batch) throws IOException {
+        int batchStart = active.written;
+        for (OutboundMessage message : batch) {
+            int length = message.bodyLength(FrameCodec.VERSION);
+            if (active.written + RECORD_HEADER + length > segmentSize) {
+                commit(batchStart);
+                roll(message.sequence);
+                batchStart = 0;
+            }
+            int position = active.written;
+            ByteBuffer body = active.buffer.duplicate();
+            body.limit(position + RECORD_HEADER + length).position(position + RECORD_HEADER);
+            message.writeBody(body, FrameCodec.VERSION);
+
+            body.position(position + RECORD_HEADER);
+            crc.reset();
+            crc.update(body);
+            active.buffer.putInt(position + 4, (int) crc.getValue());
+            active.buffer.putInt(position, length);
+            active.written = position + RECORD_HEADER + length;
+            writtenSequence = message.sequence;
+        }
+        commit(batchStart);
+    }
+
+    private void commit(int batchStart) {
+        if (active.written > batchStart) {
+            active.buffer.force(batchStart, active.written - batchStart);
+            active.lastWriteMillis = System.currentTimeMillis();
+            active.committed = active.written;
+            committedSequence = writtenSequence;
+        }
+    }
+
+    // Start a new segment whose first record has the given sequence
+    private void roll(long firstSequence) throws IOException {
+        active = Segment.map(directory.resolve(String.format("%020d", firstSequence) + SUFFIX), firstSequence, segmentSize);
+        segments.put(firstSequence, active);
+        enforceRetention();
+    }
+
+    // Delete the oldest segments while the log is over its size budget or they are too old
+    private void enforceRetention() throws IOException {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.committed;
+        }
+        long cutoff = System.currentTimeMillis() - retainMillis;
+        for (Segment segment : segments.values()) {
+            if (segment == active || (total <= retainBytes && segment.lastWriteMillis >= cutoff)) {
+                break;
+            }
+            // Replays still reading the segment keep their mapping after the file is gone
+            segments.remove(segment.firstSequence);
+            Files.deleteIfExists(segment.path);
+            total -= segment.committed;
+        }
+    }
+
+    // Map every segment, keep the intact records and continue in a fresh segment.
+    // Sequences that may have been handed out but not written before a crash are
+    // skipped, so a sequence a client has seen is never reused for another message.
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> listing = Files.list(directory)) {
+            listing.filter(path -> path.getFileName().toString().endsWith(SUFFIX)).sorted().forEach(files::add);
+        }
+        long next = 1;
+        long recovered = 0;
+        for (Path path : files) {
+            String name = path.getFileName().toString();
+            long firstSequence = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+            next = Math.max(next, firstSequence);
+            Segment segment = Segment.map(path, firstSequence, (int) Files.size(path));
+            long lastValid = segment.recover(crc);
+            segment.lastWriteMillis = Files.getLastModifiedTime(path).toMillis();
+            if (segment.committed == 0) {
+                Files.delete(path);
+                continue;
+            }
+            segments.put(firstSequence, segment);
+            recovered = lastValid;
+            next = lastValid + 1;
+        }
+        if (!files.isEmpty()) {
+            ServerLog.info("Recovered message history up to sequence ", recovered);
+            next += QUEUE_CAPACITY;
+        }
+        lastSequence = next - 1;
+        committedSequence = lastSequence;
+        writtenSequence = lastSequence;
+        roll(next);
+    }
+
+    // One mapped segment file
+    private static final class Segment {
+        final long firstSequence;
+        final Path path;
+        final MappedByteBuffer buffer;
+        int written;                    // writer thread only
+        volatile int committed;         // forced to disk and visible to replay
+        volatile long lastWriteMillis;
+
+        private Segment(long firstSequence, Path path, MappedByteBuffer buffer) {
+            this.firstSequence = firstSequence;
+            this.path = path;
+            this.buffer = buffer;
+        }
+
+        // Files are pre-sized sparse, so unused space costs no disk blocks
+        static Segment map(Path path, long firstSequence, int size) throws IOException {
+            try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+                if (file.length() < size) {
+                    file.setLength(size);
+                }
+                MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                Segment segment = new Segment(firstSequence, path, buffer);
+                segment.lastWriteMillis = System.currentTimeMillis();
+                return segment;
+            }
+        }
+
+        // Find the end of the intact records. A record is intact when it fits, its checksum
+        // matches and its sequence follows the previous one. Recovered segments are never
+        // appended to again, so whatever follows the last intact record can stay.
+        long recover(CRC32 crc) {
+            int position = 0;
+            long expected = firstSequence;
+            while (position + RECORD_HEADER <= buffer.capacity()) {
+                int length = buffer.getInt(position);
+                if (length <= FrameCodec.SEQUENCE_OFFSET + 8 || length > buffer.capacity() - position - RECORD_HEADER) {
+                    break;
+                }
+                ByteBuffer body = buffer.duplicate();
+                body.limit(position + RECORD_HEADER + length).position(position + RECORD_HEADER);
+                crc.reset();
+                crc.update(body);
+                if ((int) crc.getValue() != buffer.getInt(position + 4)
+                        || buffer.getLong(position + RECORD_HEADER + FrameCodec.SEQUENCE_OFFSET) != expected) {
+                    break;
+                }
+                position += RECORD_HEADER + length;
+                expected++;
+            }
+            written = position;
+            committed = position;
+            return expected - 1;
+        }
+    }
+}
@@ -0,0 +1,494 @@
+/*
+ * The MIT License (MIT)
+Copyright © 2023 <copyright holders>
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this 
+software and associated documentation files (the “Software”), to deal in the Software 
+without restriction, including without limitation the rights to use, copy, modify, merge, 
+publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons 
+to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies 
+or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR 
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE 
+FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR 
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+DEALINGS IN THE SOFTWARE.
+ */
+
+/*
+ * Metrics
+ * Counters and latency histograms for the whole server. Recording is a few
+ * LongAdder increments with no allocation, so it can sit on the message path;
+ * everything else (rates, percentiles, queue depths) is worked out when the
+ * metrics are read, through JMX or the Prometheus text endpoint.
+ */
+
+package io.chatserver;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.ObjectName;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+final class Metrics implements MetricsMXBean {
+    // Why a session was closed
+    enum Cause {
+        CLOSED, IO_ERROR, DECRYPT_ERROR, PROTOCOL_ERROR, TOO_LARGE, SLOW_CONSUMER, IDLE_TIMEOUT, REPLACED;
+
+        static Cause of(Throwable error) {
+            if (error instanceof SocketTimeoutException) {
+                return IDLE_TIMEOUT;    // only heartbeat sessions have a read timeout
+            }
+            if (error instanceof Admission.TooLargeException) {
+                return TOO_LARGE;       // a line or frame over --max-message-bytes
+            }
+            if (error instanceof GeneralSecurityException || error instanceof IllegalArgumentException) {
+                return DECRYPT_ERROR;   // bad ciphertext or bad Base64
+            }
+            if (error instanceof ProtocolException || error instanceof RuntimeException) {
+                return PROTOCOL_ERROR;  // bad lengths or a malformed body
+            }
+            return IO_ERROR;
+        }
+
+        String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    // Fixed-bucket latency histogram; bucket i counts values up to BOUNDS[i], the last one the rest
+    static final class Histogram {
+        private static final long[] BOUNDS = {
+                1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000,
+                1_000_000, 2_500_000, 5_000_000, 10_000_000, 100_000_000, 1_000_000_000
+        };
+
+        final String name;
+        private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+        private final LongAdder sum = new LongAdder();
+
+        Histogram(String name) {
+            this.name = name;
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            int i = 0;
+            while (i < BOUNDS.length && nanos > BOUNDS[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            sum.add(nanos);
+        }
+
+        long[] counts() {
+            long[] counts = new long[buckets.length];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets[i].sum();
+            }
+            return counts;
+        }
+
+        double mean() {
+            long count = 0;
+            for (long bucket : counts()) {
+                count += bucket;
+            }
+            return count == 0 ? 0 : sum.sum() / (double) count;
+        }
+
+        // Upper bound of the bucket holding the percentile
+        double percentile(double percentile) {
+            long[] counts = counts();
+            long total = 0;
+            for (long bucket : counts) {
+                total += bucket;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && total > 0) {
+                    return BOUNDS[i];
+                }
+            }
+            return total == 0 ? 0 : Double.POSITIVE_INFINITY;
+        }
+    }
+
+    static final LongAdder connectionsAccepted = new LongAdder();
+    static final LongAdder messagesIn = new LongAdder();
+    static final LongAdder messagesOut = new LongAdder();
+    static final LongAdder bytesIn = new LongAdder();
+    static final LongAdder bytesOut = new LongAdder();
+    static final LongAdder messagesDropped = new LongAdder();
+    static final LongAdder relayedOut = new LongAdder();
+    static final LongAdder relayedIn = new LongAdder();
+    static final LongAdder relayDuplicates = new LongAdder();
+    static final LongAdder mailboxStored = new LongAdder();
+    static final LongAdder mailboxDelivered = new LongAdder();
+    static final LongAdder mailboxExpired = new LongAdder();
+    static final LongAdder mailboxDropped = new LongAdder();
+    static final LongAdder mailboxSpilled = new LongAdder();
+    private static final LongAdder[] disconnects = new LongAdder[Cause.values().length];
+    private static final LongAdder[] shed = new LongAdder[Admission.Limit.values().length];
+    private static final LongAdder[] delayed = new LongAdder[Admission.Limit.values().length];
+
+    static final Histogram decrypt = new Histogram("decrypt");
+    static final Histogram parse = new Histogram("parse");
+    static final Histogram encrypt = new Histogram("encrypt");
+    static final Histogram fanOut = new Histogram("fanout");
+    static final Histogram compress = new Histogram("compress");
+    static final Histogram inflate = new Histogram("inflate");
+    private static final Histogram[] stages = {decrypt, parse, encrypt, fanOut, compress, inflate};
+
+    // Queue depth buckets for the scrape-time distribution over all clients
+    private static final int[] DEPTH_BOUNDS = {0, 1, 10, 100, 1000};
+
+    static {
+        for (int i = 0; i < disconnects.length; i++) {
+            disconnects[i] = new LongAdder();
+        }
+        for (int i = 0; i < shed.length; i++) {
+            shed[i] = new LongAdder();
+            delayed[i] = new LongAdder();
+        }
+    }
+
+    private static final Metrics instance = new Metrics();
+    private volatile double messagesInPerSecond;
+    private volatile double messagesOutPerSecond;
+
+    private Metrics() {
+    }
+
+    static void disconnected(Cause cause) {
+        disconnects[(cause == null ? Cause.CLOSED : cause).ordinal()].increment();
+    }
+
+    // A message over a rate limit was dropped unread, or held until its tokens were due
+    static void shed(Admission.Limit limit) {
+        shed[limit.ordinal()].increment();
+    }
+
+    static void delayed(Admission.Limit limit) {
+        delayed[limit.ordinal()].increment();
+    }
+
+    // A complete wire unit left the outbound queue for the socket
+    static void written(int bytes) {
+        messagesOut.increment();
+        bytesOut.add(bytes);
+    }
+
+    // Register the JMX bean and start the per-second rate sampler
+    static void start() throws Exception {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName("io.chatserver:type=Metrics"));
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long[] previous = {messagesIn.sum(), messagesOut.sum()};
+        sampler.scheduleAtFixedRate(() -> {
+            long in = messagesIn.sum();
+            long out = messagesOut.sum();
+            instance.messagesInPerSecond = in - previous[0];
+            instance.messagesOutPerSecond = out - previous[1];
+            previous[0] = in;
+            previous[1] = out;
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    // Serve GET /metrics in the Prometheus text format
+    static void serve(String host, int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = prometheusText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        ServerLog.info("Metrics available at http://" + host + ":" + port + "/metrics");
+    }
+
+    static String prometheusText() {
+        StringBuilder text = new StringBuilder(4096);
+        gauge(text, "chat_connections", "Connected clients", ChatServer.clientCount());
+        counter(text, "chat_connections_accepted_total", "Connections accepted", connectionsAccepted.sum());
+        counter(text, "chat_messages_in_total", "Requests received", messagesIn.sum());
+        counter(text, "chat_messages_out_total", "Messages written to clients", messagesOut.sum());
+        counter(text, "chat_bytes_in_total", "Request bytes received", bytesIn.sum());
+        counter(text, "chat_bytes_out_total", "Bytes written to clients", bytesOut.sum());
+        counter(text, "chat_messages_dropped_total", "Messages dropped by the slow-consumer policy", messagesDropped.sum());
+        counter(text, "chat_relayed_out_total", "Messages relayed to other cluster nodes", relayedOut.sum());
+        counter(text, "chat_relayed_in_total", "Relayed messages delivered from other cluster nodes", relayedIn.sum());
+        counter(text, "chat_relay_duplicates_total", "Relayed messages dropped as already delivered", relayDuplicates.sum());
+        gauge(text, "chat_mailboxes", "Offline clients with a mailbox", ChatServer.mailboxCount());
+        gauge(text, "chat_mailbox_memory_bytes", "Mailbox bytes held in memory", ChatServer.mailboxMemory());
+        counter(text, "chat_mailbox_stored_total", "Messages kept for offline clients", mailboxStored.sum());
+        counter(text, "chat_mailbox_delivered_total", "Kept messages delivered when their client came back", mailboxDelivered.sum());
+        counter(text, "chat_mailbox_expired_total", "Kept messages dropped after the TTL", mailboxExpired.sum());
+        counter(text, "chat_mailbox_dropped_total", "Messages not kept because the mailbox was full", mailboxDropped.sum());
+        counter(text, "chat_mailbox_spilled_total", "Kept messages spilled to disk over the memory budget", mailboxSpilled.sum());
+
+        header(text, "chat_disconnects_total", "Closed connections by cause", "counter");
+        for (Cause cause : Cause.values()) {
+            text.append("chat_disconnects_total{cause=\"").append(cause.label()).append("\"} ")
+                    .append(disconnects[cause.ordinal()].sum()).append('\n');
+        }
+
+        header(text, "chat_admission_shed_total", "Messages shed unread by the rate limit that held them back", "counter");
+        for (Admission.Limit limit : Admission.Limit.values()) {
+            text.append("chat_admission_shed_total{limit=\"").append(limit.label()).append("\"} ")
+                    .append(shed[limit.ordinal()].sum()).append('\n');
+        }
+        header(text, "chat_admission_delayed_total", "Messages delayed by the rate limit that held them back", "counter");
+        for (Admission.Limit limit : Admission.Limit.values()) {
+            text.append("chat_admission_delayed_total{limit=\"").append(limit.label()).append("\"} ")
+                    .append(delayed[limit.ordinal()].sum()).append('\n');
+        }
+
+        header(text, "chat_stage_seconds", "Time per message in each pipeline stage", "histogram");
+        for (Histogram stage : stages) {
+            long[] counts = stage.counts();
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                String le = i < Histogram.BOUNDS.length ? seconds(Histogram.BOUNDS[i]) : "+Inf";
+                text.append("chat_stage_seconds_bucket{stage=\"").append(stage.name).append("\",le=\"").append(le)
+                        .append("\"} ").append(cumulative).append('\n');
+            }
+            text.append("chat_stage_seconds_sum{stage=\"").append(stage.name).append("\"} ")
+                    .append(seconds(stage.sum.sum())).append('\n');
+            text.append("chat_stage_seconds_count{stage=\"").append(stage.name).append("\"} ").append(cumulative).append('\n');
+        }
+
+        // Queue depths are read from the sessions now, so recording them costs nothing
+        long[] depthCounts = new long[DEPTH_BOUNDS.length + 1];
+        long depthTotal = 0;
+        int depthMax = 0;
+        for (Session session : ChatServer.clients()) {
+            int depth = session.outbound.size();
+            int i = 0;
+            while (i < DEPTH_BOUNDS.length && depth > DEPTH_BOUNDS[i]) {
+                i++;
+            }
+            depthCounts[i]++;
+            depthTotal += depth;
+            depthMax = Math.max(depthMax, depth);
+        }
+        header(text, "chat_outbound_queue_depth", "Outbound queue depth per client", "histogram");
+        long cumulative = 0;
+        for (int i = 0; i < depthCounts.length; i++) {
+            cumulative += depthCounts[i];
+            String le = i < DEPTH_BOUNDS.length ? String.valueOf(DEPTH_BOUNDS[i]) : "+Inf";
+            text.append("chat_outbound_queue_depth_bucket{le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+        }
+        text.append("chat_outbound_queue_depth_sum ").append(depthTotal).append('\n');
+        text.append("chat_outbound_queue_depth_count ").append(cumulative).append('\n');
+        gauge(text, "chat_outbound_queue_depth_max", "Deepest outbound queue", depthMax);
+        return text.toString();
+    }
+
+    private static void header(StringBuilder text, String name, String help, String type) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, long value) {
+        header(text, name, help, "gauge");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder text, String name, String help, long value) {
+        header(text, name, help, "counter");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.valueOf(nanos / 1e9);
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return ChatServer.clientCount();
+    }
+
+    @Override
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.sum();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public double getMessagesInPerSecond() {
+        return messagesInPerSecond;
+    }
+
+    @Override
+    public double getMessagesOutPerSecond() {
+        return messagesOutPerSecond;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getMessagesDropped() {
+        return messagesDropped.sum();
+    }
+
+    @Override
+    public long getRelayedOut() {
+        return relayedOut.sum();
+    }
+
+    @Override
+    public long getRelayedIn() {
+        return relayedIn.sum();
+    }
+
+    @Override
+    public long getRelayDuplicates() {
+        return relayDuplicates.sum();
+    }
+
+    @Override
+    public int getMailboxes() {
+        return ChatServer.mailboxCount();
+    }
+
+    @Override
+    public long getMailboxMemoryBytes() {
+        return ChatServer.mailboxMemory();
+    }
+
+    @Override
+    public long getMailboxStored() {
+        return mailboxStored.sum();
+    }
+
+    @Override
+    public long getMailboxDelivered() {
+        return mailboxDelivered.sum();
+    }
+
+    @Override
+    public long getMailboxExpired() {
+        return mailboxExpired.sum();
+    }
+
+    @Override
+    public long getMailboxDropped() {
+        return mailboxDropped.sum();
+    }
+
+    @Override
+    public long getMailboxSpilled() {
+        return mailboxSpilled.sum();
+    }
+
+    @Override
+    public Map<String, Double> getStageMeanNanos() {
+        Map<String, Double> means = new LinkedHashMap<>();
+        for (Histogram stage : stages) {
+            means.put(stage.name, stage.mean());
+        }
+        return means;
+    }
+
+    @Override
+    public Map<String, Double> getStageP99Nanos() {
+        Map<String, Double> percentiles = new LinkedHashMap<>();
+        for (Histogram stage : stages) {
+            percentiles.put(stage.name, stage.percentile(99));
+        }
+        return percentiles;
+    }
+
+    @Override
+    public int getOutboundQueueDepthMax() {
+        int max = 0;
+        for (Session session : ChatServer.clients()) {
+            max = Math.max(max, session.outbound.size());
+        }
+        return max;
+    }
+
+    @Override
+    public long getOutboundQueueDepthTotal() {
+        long total = 0;
+        for (Session session : ChatServer.clients()) {
+            total += session.outbound.size();
+        }
+        return total;
+    }
+
+    @Override
+    public Map<String, Long> getDisconnects() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Cause cause : Cause.values()) {
+            counts.put(cause.label(), disconnects[cause.ordinal()].sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getAdmissionShed() {
+        return byLimit(shed);
+    }
+
+    @Override
+    public Map<String, Long> getAdmissionDelayed() {
+        return byLimit(delayed);
+    }
+
+    private static Map<String, Long> byLimit(LongAdder[] counters) {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Admission.Limit limit : Admission.Limit.values()) {
+            counts.put(limit.label(), counters[limit.ordinal()].sum());
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * The MIT License (MIT)
+Copyright © 2023 <copyright holders>
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this 
+software and associated documentation files (the “Software”), to deal in the Software 
+without restriction, including without limitation the rights to use, copy, modify, merge, 
+publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons 
+to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies 
+or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR 
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE 
+FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR 
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+DEALINGS IN THE SOFTWARE.
+ */
+
+/*
+ * MetricsMXBean
+ * The server's metrics as seen from JMX, registered as
+ * io.chatserver:type=Metrics. Rates are per second over the last second.
+ */
+
+package io.chatserver;
+
+import java.util.Map;
+
+public interface MetricsMXBean {
+    int getActiveConnections();
+
+    long getConnectionsAccepted();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    double getMessagesInPerSecond();
+
+    double getMessagesOutPerSecond();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getMessagesDropped();
+
+    long getRelayedOut();
+
+    long getRelayedIn();
+
+    long getRelayDuplicates();
+
+    int getMailboxes();
+
+    long getMailboxMemoryBytes();
+
+    long getMailboxStored();
+
+    long getMailboxDelivered();
+
+    long getMailboxExpired();
+
+    long getMailboxDropped();
+
+    long getMailboxSpilled();
+
+    // Mean and 99th percentile in nanoseconds, per stage: decrypt, parse, encrypt, fanout, compress, inflate
+    Map<String, Double> getStageMeanNanos();
+
+    Map<String, Double> getStageP99Nanos();
+
+    int getOutboundQueueDepthMax();
+
+    long getOutboundQueueDepthTotal();
+
+    Map<String, Long> getDisconnects();
+
+    // Messages held back by each rate limit: client, address, global
+    Map<String, Long> getAdmissionShed();
+
+    Map<String, Long> getAdmissionDelayed();
+}
@@ -0,0 +1,560 @@
+/*
+ * The MIT License (MIT)
+Copyright © 2023 <copyright holders>
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this 
+software and associated documentation files (the “Software”), to deal in the Software 
+without restriction, including without limitation the rights to use, copy, modify, merge, 
+publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons 
+to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies 
+or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR 
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE 
+FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR 
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+DEALINGS IN THE SOFTWARE.
+ */
+
+/*
+ * NioEngine
+ * Non-blocking connection engine for the chat server: a small pool of
+ * selector event loops serves every client instead of one thread each.
+ * It negotiates the same wire formats as ClientHandler, and each loop is
+ * the writer that drains its sessions' outbound queues.
+ */
+
+package io.chatserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+class NioEngine {
+    // Per-connection read buffers start small and grow up to the largest accepted line or frame
+    private static final int INITIAL_READ_BUFFER = 512;
+    private static final int MAX_READ_BUFFER = FrameCodec.MAX_FRAME_LENGTH + 4;
+    // How long a new connection may stay silent before it is treated as a legacy client
+    private static final long NEGOTIATION_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    // How often each loop looks for heartbeat sessions past the idle timeout
+    private static final long IDLE_CHECK_MILLIS = 1000;
+
+    private final int port;
+    private final EventLoop[] loops;
+
+    NioEngine(int port, int loopCount) throws IOException {
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+        }
+    }
+
+    void run() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), ChatServer.acceptBacklog);
+
+        // Start one event loop thread per configured loop (one per core by default)
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            thread.start();
+        }
+        ServerLog.info("Server listening on port " + port + " (nio, " + loops.length + " event loops)");
+
+        // Accept on this thread and hand each connection to the loops in turn
+        int next = 0;
+        while (true) {
+            SocketChannel channel = serverChannel.accept();
+            Metrics.connectionsAccepted.increment();
+            channel.socket().setKeepAlive(true);
+            ServerLog.info("Connection established with ", channel.getRemoteAddress());
+            loops[next].register(channel);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    // One selector thread multiplexing many connections
+    private static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+        private final Queue<NioSession> pendingFlushes = new ConcurrentLinkedQueue<>();
+        // Sessions that have not sent anything yet, oldest first
+        private final ArrayDeque<NioSession> negotiating = new ArrayDeque<>();
+        // Sessions whose reads are paused until a rate-limited message is due, soonest first
+        private final PriorityQueue<NioSession> delayed = new PriorityQueue<>(Comparator.comparingLong(session -> session.resumeAt));
+        private long nextIdleCheck;
+        private final Frame frame = new Frame();
+        private volatile Thread thread;
+        private CipherContext crypto;
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        // Called from the accept thread
+        void register(SocketChannel channel) {
+            pendingChannels.add(channel);
+            selector.wakeup();
+        }
+
+        // Called when a session on this loop has new output queued
+        void scheduleFlush(NioSession session) {
+            if (Thread.currentThread() == thread) {
+                session.flush();
+            } else {
+                pendingFlushes.add(session);
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            try {
+                crypto = new CipherContext();
+            } catch (Exception e) {
+                ServerLog.error("Could not create the event loop ciphers", e);
+                return;
+            }
+
+            while (true) {
+                try {
+                    // Wake up for the next negotiation deadline, and once a second to look for idle sessions
+                    long wait = ChatServer.idleTimeoutMillis > 0 ? IDLE_CHECK_MILLIS : 0;
+                    NioSession oldest = negotiating.peek();
+                    if (oldest != null) {
+                        long untilDeadline = Math.max(1, TimeUnit.NANOSECONDS.toMillis(oldest.negotiationDeadline - System.nanoTime()));
+                        wait = wait == 0 ? untilDeadline : Math.min(wait, untilDeadline);
+                    }
+                    NioSession next = delayed.peek();
+                    if (next != null) {
+                        // Round up, so a delayed message is never handled early
+                        long untilResume = Math.max(1, TimeUnit.NANOSECONDS.toMillis(next.resumeAt - System.nanoTime() + 999_999));
+                        wait = wait == 0 ? untilResume : Math.min(wait, untilResume);
+                    }
+                    if (wait == 0) {
+                        selector.select();
+                    } else {
+                        selector.select(wait);
+                    }
+                    registerPendingChannels();
+                    flushPendingSessions();
+                    resumeDelayedSessions();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioSession session = (NioSession) key.attachment();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            session.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            session.flush();
+                        }
+                    }
+                    expireNegotiations();
+                    evictIdleSessions();
+                } catch (Exception e) {
+                    ServerLog.error("Event loop error", e);
+                }
+            }
+        }
+
+        private void registerPendingChannels() {
+            SocketChannel channel;
+            while ((channel = pendingChannels.poll()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    NioSession session = new NioSession(this, channel);
+                    session.key = channel.register(selector, SelectionKey.OP_READ, session);
+                    session.negotiationDeadline = System.nanoTime() + NEGOTIATION_TIMEOUT_NANOS;
+                    negotiating.add(session);
+                } catch (IOException e) {
+                    ServerLog.error("Could not register connection", e);
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                        // Nothing left to release
+                    }
+                }
+            }
+        }
+
+        private void flushPendingSessions() {
+            NioSession session;
+            while ((session = pendingFlushes.poll()) != null) {
+                session.flushScheduled.set(false);
+                session.flush();
+            }
+        }
+
+        private void resumeDelayedSessions() {
+            long now = System.nanoTime();
+            NioSession session;
+            while ((session = delayed.peek()) != null && session.resumeAt - now <= 0) {
+                delayed.poll();
+                session.resume();
+            }
+        }
+
+        // Heartbeat sessions that have not sent a frame within the idle timeout are gone
+        private void evictIdleSessions() {
+            long now = System.nanoTime();
+            if (ChatServer.idleTimeoutMillis == 0 || now - nextIdleCheck < 0) {
+                return;
+            }
+            nextIdleCheck = now + TimeUnit.MILLISECONDS.toNanos(IDLE_CHECK_MILLIS);
+            long timeout = TimeUnit.MILLISECONDS.toNanos(ChatServer.idleTimeoutMillis);
+            for (SelectionKey key : selector.keys()) {
+                NioSession session = (NioSession) key.attachment();
+                if (session != null && session.heartbeats && !session.closed && now - session.lastRead >= timeout) {
+                    session.closedBy(Metrics.Cause.IDLE_TIMEOUT);
+                    ServerLog.warn("Evicting idle client ", session.remoteAddress());
+                    session.closeNow();
+                }
+            }
+        }
+
+        // Silent clients are legacy clients that only listen; a client that
+        // asked for AES-GCM but never sent its nonce is dropped
+        private void expireNegotiations() {
+            long now = System.nanoTime();
+            NioSession session;
+            while ((session = negotiating.peek()) != null
+                    && (session.state != NioSession.NEGOTIATING && session.state != NioSession.KEYING
+                        || now - session.negotiationDeadline >= 0)) {
+                negotiating.poll();
+                if (session.closed) {
+                    continue;
+                }
+                if (session.state == NioSession.NEGOTIATING) {
+                    session.start(0);
+                } else if (session.state == NioSession.KEYING) {
+                    session.closedBy(Metrics.Cause.PROTOCOL_ERROR);
+                    session.closeNow();
+                }
+            }
+        }
+    }
+
+    // Connection state owned by a single event loop
+    private static class NioSession extends Session {
+        private static final int NEGOTIATING = 0, LEGACY = 1, BINARY = 2, KEYING = 3;
+
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private int state = NEGOTIATING;
+        private long negotiationDeadline;
+        private long lastRead = System.nanoTime();
+        private int helloVersion;
+        private byte[] serverNonce;
+        // Reads stop while the message at the head of the buffer waits for its rate-limit tokens
+        private boolean paused;
+        private boolean headAdmitted;
+        private long resumeAt;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+        private ByteBuffer pendingWrite;
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private volatile boolean closeRequested;
+        private boolean closed;
+
+        NioSession(EventLoop loop, SocketChannel channel) {
+            super(ChatServer.queueCapacity, ChatServer.slowConsumerPolicy);
+            this.loop = loop;
+            this.channel = channel;
+            this.address = channel.socket().getInetAddress();
+        }
+
+        // May be called from any thread; the owning loop performs the write
+        @Override
+        protected void messageQueued() {
+            if (Thread.currentThread() == loop.thread || flushScheduled.compareAndSet(false, true)) {
+                loop.scheduleFlush(this);
+            }
+        }
+
+        // Fix the wire format (0 for legacy lines) and start receiving broadcasts
+        private void start(int frameVersion) {
+            version = frameVersion;
+            state = frameVersion > 0 ? BINARY : LEGACY;
+            ChatServer.addClient(this);
+        }
+
+        void read() {
+            try {
+                int count = channel.read(readBuffer);
+                if (count < 0) {
+                    closeNow();
+                    return;
+                }
+                lastRead = System.nanoTime();
+                process();
+            } catch (Exception e) {
+                closedBy(Metrics.Cause.of(e));
+                ServerLog.error("Connection with " + remoteAddress() + " failed", e);
+                closeNow();
+            }
+        }
+
+        // Handle the buffered input after a read, or once a delayed message is due
+        private void process() throws Exception {
+            if (state == NEGOTIATING) {
+                negotiate();
+            }
+            if (state == KEYING) {
+                finishKeying();
+            }
+            if (state == LEGACY) {
+                processLines();
+            } else if (state == BINARY) {
+                processFrames();
+            }
+
+            // Grow the buffer when a single line or frame does not fit yet
+            if (!paused && !readBuffer.hasRemaining()) {
+                if (readBuffer.capacity() >= MAX_READ_BUFFER) {
+                    throw new ProtocolException("Message exceeds " + MAX_READ_BUFFER + " bytes");
+                }
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, MAX_READ_BUFFER));
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            }
+        }
+
+        // Returns 0 to handle the message at the head of the buffer now, -1 to shed it, or the
+        // nanoseconds it must wait, after pausing reads until then
+        private long admit() {
+            if (headAdmitted) {
+                headAdmitted = false;
+                return 0;
+            }
+            long wait = Admission.admit(this);
+            if (wait > 0) {
+                paused = true;
+                headAdmitted = true;
+                resumeAt = System.nanoTime() + wait;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                loop.delayed.add(this);
+            }
+            return wait;
+        }
+
+        private void resume() {
+            if (closed) {
+                return;
+            }
+            paused = false;
+            try {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                process();
+            } catch (Exception e) {
+                closedBy(Metrics.Cause.of(e));
+                ServerLog.error("Connection with " + remoteAddress() + " failed", e);
+                closeNow();
+            }
+        }
+
+        // Newer clients open with a hello; anything else is a legacy Base64 line
+        private void negotiate() throws IOException {
+            if (readBuffer.position() == 0) {
+                return;
+            }
+            if (readBuffer.get(0) != FrameCodec.HELLO_MAGIC[0]) {
+                start(0);
+                return;
+            }
+            if (readBuffer.position() < FrameCodec.HELLO_LENGTH) {
+                return;
+            }
+            byte[] hello = new byte[FrameCodec.HELLO_LENGTH];
+            readBuffer.flip();
+            readBuffer.get(hello);
+            readBuffer.compact();
+
+            // Nothing is queued before start(), so the reply goes out first
+            byte[] reply = FrameCodec.helloReply(hello, ChatServer.helloFeatures);
+            int features = FrameCodec.helloFeatures(reply);
+            heartbeats = (features & FrameCodec.FEATURE_HEARTBEAT) != 0;
+            compression = (features & FrameCodec.FEATURE_DEFLATE) != 0;
+            helloVersion = FrameCodec.helloVersion(reply);
+            if ((features & FrameCodec.FEATURE_GCM) == 0) {
+                pendingWrite = ByteBuffer.wrap(reply);
+                flush();
+                start(helloVersion);
+                return;
+            }
+            serverNonce = SessionCipher.newNonce();
+            pendingWrite = ByteBuffer.allocate(reply.length + serverNonce.length).put(reply).put(serverNonce).flip();
+            flush();
+            state = KEYING;
+        }
+
+        // AES-GCM sessions wait for the client's nonce before joining the broadcast
+        private void finishKeying() throws GeneralSecurityException {
+            if (readBuffer.position() < SessionCipher.NONCE_LENGTH) {
+                return;
+            }
+            byte[] clientNonce = new byte[SessionCipher.NONCE_LENGTH];
+            readBuffer.flip();
+            readBuffer.get(clientNonce);
+            readBuffer.compact();
+            sessionCipher = new SessionCipher(clientNonce, serverNonce);
+            serverNonce = null;
+            start(helloVersion);
+        }
+
+        // Handle every complete line in the buffer and keep any partial tail
+        private void processLines() throws Exception {
+            byte[] bytes = readBuffer.array();
+            int end = readBuffer.position();
+            int start = 0;
+            for (int i = 0; i < end; i++) {
+                if (bytes[i] == '\n') {
+                    int lineEnd = (i > start && bytes[i - 1] == '\r') ? i - 1 : i;
+                    // Refused before it is admitted, so it costs the client no tokens
+                    Admission.checkLength(lineEnd - start);
+                    long wait = admit();
+                    if (wait > 0) {
+                        break;
+                    }
+                    if (wait == 0) {
+                        String encryptedMessage = new String(bytes, start, lineEnd - start, StandardCharsets.US_ASCII);
+                        ChatServer.decodeLine(encryptedMessage, loop.crypto, loop.frame);
+                        ChatServer.handleFrame(this, loop.frame, loop.crypto);
+                    }
+                    start = i + 1;
+                }
+            }
+            if (!paused) {
+                // What is left is part of one line
+                Admission.checkLength(end - start);
+            }
+            readBuffer.position(start);
+            readBuffer.limit(end);
+            readBuffer.compact();
+        }
+
+        // Handle every complete length-prefixed frame in the buffer and keep any partial tail
+        private void processFrames() throws Exception {
+            int end = readBuffer.position();
+            int start = 0;
+            while (end - start >= 4) {
+                int length = readBuffer.getInt(start);
+                if (length <= 0) {
+                    throw new ProtocolException("Invalid frame length " + length);
+                }
+                Admission.checkLength(length);
+                if (end - start - 4 < length) {
+                    break;
+                }
+                long wait = admit();
+                if (wait > 0) {
+                    break;
+                }
+                if (wait == 0) {
+                    ByteBuffer body = readBuffer.duplicate();
+                    body.limit(start + 4 + length).position(start + 4);
+                    ChatServer.decodeFrame(body, loop.crypto, sessionCipher, loop.frame, version);
+                    ChatServer.handleFrame(this, loop.frame, loop.crypto);
+                } else if (sessionCipher != null) {
+                    // Shed unread; the GCM nonce counter still moves past it
+                    sessionCipher.skip();
+                }
+                start += 4 + length;
+            }
+            readBuffer.position(start);
+            readBuffer.limit(end);
+            readBuffer.compact();
+        }
+
+        // Write as much queued output as the socket accepts, then wait for OP_WRITE
+        void flush() {
+            if (closeRequested) {
+                closeNow();
+            }
+            if (closed) {
+                return;
+            }
+            try {
+                while (true) {
+                    if (pendingWrite == null) {
+                        byte[] wire = outbound.poll();
+                        if (wire == null) {
+                            break;
+                        }
+                        // The sealed frame buffer is reused, but only once this write completes
+                        pendingWrite = sessionCipher != null ? sessionCipher.seal(wire) : ByteBuffer.wrap(wire);
+                        Metrics.written(pendingWrite.remaining());
+                    }
+                    channel.write(pendingWrite);
+                    if (pendingWrite.hasRemaining()) {
+                        key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    pendingWrite = null;
+                }
+                key.interestOps(readInterest());
+            } catch (IOException | GeneralSecurityException e) {
+                closedBy(Metrics.Cause.of(e));
+                ServerLog.error("Could not write to " + remoteAddress(), e);
+                closeNow();
+            }
+        }
+
+        private int readInterest() {
+            return paused ? 0 : SelectionKey.OP_READ;
+        }
+
+        // Hand the close to the owning loop
+        @Override
+        void close() {
+            closeRequested = true;
+            loop.scheduleFlush(this);
+        }
+
+        @Override
+        String remoteAddress() {
+            return String.valueOf(channel.socket().getRemoteSocketAddress());
+        }
+
+        private void closeNow() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                ServerLog.error("Could not close connection", e);
+            }
+            outbound.clear();
+            pendingWrite = null;
+            ChatServer.removeClient(this);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * The MIT License (MIT)
+Copyright © 2023 <copyright holders>
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this 
+software and associated documentation files (the “Software”), to deal in the Software 
+without restriction, including without limitation the rights to use, copy, modify, merge, 
+publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons 
+to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies 
+or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR 
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE 
+FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR 
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+DEALINGS IN THE SOFTWARE.
+ */
+
+/*
+ * OutboundMessage
+ * A message from the server to one or many recipients. It is compressed and encrypted
+ * at most once per wire format (legacy Base64 line, or binary frame version with or
+ * without compression), and the encoded bytes are shared read-only by every
+ * recipient of that format.
+ */
+
+package io.chatserver;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+
+final class OutboundMessage {
+    private final byte type;
+    private final long timestamp;
+    private final byte[] clientId;
+    private final byte[] address;
+    private final byte[] target;
+    private final byte[] text;
+
+    // Assigned by the message log before fan-out; 0 for messages that are not logged
+    long sequence;
+
+    // The fan-out thread's ciphers: encoding only happens on the thread that creates the message
+    private final CipherContext crypto;
+    // Wire bytes per protocol version; version 0 is the legacy line
+    private final byte[][] encodings = new byte[FrameCodec.VERSION + 1][];
+    private final byte[][] compressedEncodings = new byte[FrameCodec.VERSION + 1][];
+    // Plaintext bodies per protocol version, for AES-GCM sessions that seal them with their own key.
+    // A compressed body is the plain one when compressing it would not pay.
+    private final byte[][] bodies = new byte[FrameCodec.VERSION + 1][];
+    private final byte[][] compressedBodies = new byte[FrameCodec.VERSION + 1][];
+
+    // Header fields are copied from the request that caused the message; the target
+    // is null unless the frame type carries one
+    OutboundMessage(byte type, Frame origin, byte[] target, byte[] text, CipherContext crypto) {
+        this.type = type;
+        this.timestamp = origin.timestamp;
+        this.clientId = origin.clientIdBytes;
+        this.address = origin.address;
+        this.target = target;
+        this.text = text;
+        this.crypto = crypto;
+    }
+
+    // Complete wire bytes for a recipient of the given protocol version, encrypted on first use
+    byte[] encoded(int version) {
+        if (encodings[version] == null) {
+            try {
+                encodings[version] = version == 0 ? encodeLine() : encodeFrame(version);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Could not encrypt message", e);
+            }
+        }
+        return encodings[version];
+    }
+
+    // Wire bytes for a recipient that may or may not accept compressed bodies
+    byte[] encoded(int version, boolean compression) {
+        if (!compression || version == 0) {
+            return encoded(version);
+        }
+        if (compressedEncodings[version] == null) {
+            byte[] body = body(version, true);
+            try {
+                compressedEncodings[version] = body == body(version) ? encoded(version)
+                        : encryptFrame(ByteBuffer.wrap(body), crypto);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Could not encrypt message", e);
+            }
+        }
+        return compressedEncodings[version];
+    }
+
+    // Unencrypted body, compressed when the recipient accepts it and the body is large enough
+    byte[] body(int version, boolean compression) {
+        if (!compression) {
+            return body(version);
+        }
+        if (compressedBodies[version] == null) {
+            byte[] compressed = Compression.compress(ByteBuffer.wrap(body(version)));
+            compressedBodies[version] = compressed != null ? compressed : body(version);
+        }
+        return compressedBodies[version];
+    }
+
+    // Unencrypted binary body for a recipient of the given version, built on first use
+    byte[] body(int version) {
+        if (bodies[version] == null) {
+            ByteBuffer body = ByteBuffer.allocate(bodyLength(version));
+            writeBody(body, version);
+            bodies[version] = body.array();
+        }
+        return bodies[version];
+    }
+
+    int bodyLength(int version) {
+        return FrameCodec.bodyLength(version, clientId, address, target, text);
+    }
+
+    void writeBody(ByteBuffer body, int version) {
+        FrameCodec.encode(body, version, type, timestamp, sequence, clientId, address, target, text);
+    }
+
+    // Base64(AES(text)) followed by a newline
+    private byte[] encodeLine() throws GeneralSecurityException {
+        long start = System.nanoTime();
+        byte[] encoded = Base64.getEncoder().encode(crypto.encryptor.doFinal(text));
+        byte[] bytes = Arrays.copyOf(encoded, encoded.length + 1);
+        bytes[encoded.length] = '\n';
+        Metrics.encrypt.record(System.nanoTime() - start);
+        return bytes;
+    }
+
+    private byte[] encodeFrame(int version) throws GeneralSecurityException {
+        return encryptFrame(ByteBuffer.wrap(body(version)), crypto);
+    }
+
+    // u32 length followed by AES(body); the body is read in place, so it may be a mapped log record
+    static byte[] encryptFrame(ByteBuffer body, CipherContext crypto) throws GeneralSecurityException {
+        long start = System.nanoTime();
+        ByteBuffer wire = ByteBuffer.allocate(4 + crypto.encryptor.getOutputSize(body.remaining()));
+        wire.position(4);
+        int length = crypto.encryptor.doFinal(body, wire);
+        wire.putInt(0, length);
+        Metrics.encrypt.record(System.nanoTime() - start);
+        return wire.position() == wire.capacity() ? wire.array() : Arrays.copyOf(wire.array(), wire.position());
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * The MIT License (MIT)
+Copyright © 2023 <copyright holders>
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this 
+software and associated documentation files (the “Software”), to deal in the Software 
+without restriction, including without limitation the rights to use, copy, modify, merge, 
+publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons 
+to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies 
+or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR 
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE 
+FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR 
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+DEALINGS IN THE SOFTWARE.
+ */
+
+/*
+ * ServerLog
+ * Asynchronous server logging. Handler threads copy an event into a slot of
+ * a pre-allocated ring buffer with one CAS and return; a background thread
+ * formats the events and writes them in batches, flushing once per batch.
+ * When the ring is full the event is dropped and counted, never waited for.
+ *
+ * Chat message events capture the request's fields by reference and are only
+ * turned into text on the writer thread. They can be sampled, logging one in
+ * N messages, to keep busy servers quiet.
+ */
+
+package io.chatserver;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+final class ServerLog {
+    enum Level {
+        OFF, ERROR, WARN, INFO, DEBUG;
+
+        static Level parse(String value) {
+            return valueOf(value.toUpperCase());
+        }
+    }
+
+    private static final int MAX_BATCH = 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static volatile Level level = Level.INFO;
+    private static int sampleRate = 1;
+
+    // Null until start(); events logged before that are written directly
+    private static Slot[] slots;
+    private static int mask;
+    private static final AtomicLong claimed = new AtomicLong();
+    private static volatile long consumed;
+    private static final LongAdder dropped = new LongAdder();
+    private static Thread writer;
+
+    private ServerLog() {
+    }
+
+    // Size the ring (rounded up to a power of two) and start the writer thread
+    static synchronized void start(Level logLevel, int messageSampleRate, int capacity) {
+        level = logLevel;
+        sampleRate = Math.max(1, messageSampleRate);
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        Slot[] ring = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Slot();
+        }
+        mask = size - 1;
+        slots = ring;
+
+        writer = new Thread(ServerLog::writeLoop, "server-log");
+        writer.setDaemon(true);
+        writer.start();
+        // Write out whatever is still queued when the server is stopped
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            writer.interrupt();
+            try {
+                writer.join(1000);
+            } catch (InterruptedException ignored) {
+                // Exiting anyway
+            }
+        }));
+    }
+
+    static boolean enabled(Level eventLevel) {
+        return eventLevel.compareTo(level) <= 0 && eventLevel != Level.OFF;
+    }
+
+    static void info(String text) {
+        log(Level.INFO, text, null, null);
+    }
+
+    // The detail is appended to the text by the writer, so callers need not concatenate
+    static void info(String text, Object detail) {
+        log(Level.INFO, text, detail, null);
+    }
+
+    static void warn(String text, Object detail) {
+        log(Level.WARN, text, detail, null);
+    }
+
+    static void error(String text, Throwable error) {
+        log(Level.ERROR, text, null, error);
+    }
+
+    // A client request; chat messages are sampled, other requests are always logged
+    static void request(Frame frame) {
+        if (!enabled(Level.INFO)) {
+            return;
+        }
+        boolean message = frame.type == FrameCodec.SEND_MESSAGE || frame.type == FrameCodec.SEND_MESSAGE_WITH_DETAILS
+                || frame.type == FrameCodec.SEND_ROOM_MESSAGE || frame.type == FrameCodec.SEND_DIRECT_MESSAGE;
+        if (message && sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return;
+        }
+        Slot slot = claim();
+        if (slot != null) {
+            slot.level = Level.INFO;
+            slot.frame.copyFrom(frame);
+            slot.isRequest = true;
+            slot.publish();
+        }
+    }
+
+    private static void log(Level eventLevel, String text, Object detail, Throwable error) {
+        if (!enabled(eventLevel)) {
+            return;
+        }
+        Slot slot = claim();
+        if (slot == null) {
+            if (slots == null) {
+                PrintWriter out = directOut();
+                PrintWriter err = directErr();
+                write(out, err, eventLevel, text, detail, error);
+                out.flush();
+                err.flush();
+            }
+            return;
+        }
+        slot.level = eventLevel;
+        slot.text = text;
+        slot.detail = detail;
+        slot.error = error;
+        slot.isRequest = false;
+        slot.publish();
+    }
+
+    // Claim the next free slot, or count a drop when the writer is a full ring behind
+    private static Slot claim() {
+        Slot[] ring = slots;
+        if (ring == null) {
+            return null;
+        }
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= ring.length) {
+                dropped.increment();
+                return null;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        Slot slot = ring[(int) sequence & mask];
+        slot.sequence = sequence;
+        return slot;
+    }
+
+    private static void writeLoop() {
+        PrintWriter out = directOut();
+        PrintWriter err = directErr();
+        long reportedDrops = 0;
+        boolean stopping = false;
+        while (true) {
+            // Drain the published slots in order, up to one batch
+            int count = 0;
+            long next = consumed;
+            Slot slot;
+            while (count < MAX_BATCH && (slot = slots[(int) next & mask]).published == next + 1) {
+                if (slot.isRequest) {
+                    out.println(format(slot.frame));
+                } else {
+                    write(out, err, slot.level, slot.text, slot.detail, slot.error);
+                }
+                slot.clear();
+                consumed = ++next;
+                count++;
+            }
+            long drops = dropped.sum();
+            if (drops != reportedDrops) {
+                out.println("Log buffer full, " + (drops - reportedDrops) + " events dropped");
+                reportedDrops = drops;
+            }
+            if (count > 0) {
+                out.flush();
+                err.flush();
+                continue;
+            }
+            if (stopping) {
+                return;
+            }
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+            stopping = Thread.interrupted();
+        }
+    }
+
+    // Same lines the server has always printed for each request
+    private static String format(Frame frame) {
+        String method = "clientMethod: " + FrameCodec.methodName(frame.type);
+        switch (frame.type) {
+            case FrameCodec.JOIN_ROOM:
+            case FrameCodec.LEAVE_ROOM:
+                return method + ", Room: " + frame.target + ", ID: " + frame.clientId;
+            case FrameCodec.HISTORY_QUERY:
+                return method + ", Since: " + frame.sequence + ", ID: " + frame.clientId;
+            default:
+                return method
+                        + (frame.target != null ? ", To: " + frame.target : "")
+                        + ", Message received: " + frame.payloadText()
+                        + ", IP: " + frame.addressText() + ", ID: "
+                        + frame.clientId + ", Timestamp: "
+                        + frame.timestampText();
+        }
+    }
+
+    private static void write(PrintWriter out, PrintWriter err, Level eventLevel, String text, Object detail,
+            Throwable error) {
+        if (error != null) {
+            err.println(text);
+            error.printStackTrace(err);
+        } else if (eventLevel == Level.ERROR || eventLevel == Level.WARN) {
+            err.println(detail == null ? text : text + detail);
+        } else {
+            out.println(detail == null ? text : text + detail);
+        }
+    }
+
+    private static PrintWriter directOut() {
+        return new PrintWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8));
+    }
+
+    private static PrintWriter directErr() {
+        return new PrintWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.err), StandardCharsets.UTF_8));
+    }
+
+    // One ring entry; fields are written by the claiming thread before publish()
+    private static final class Slot {
+        long sequence;
+        volatile long published;    // sequence + 1 once the fields are complete
+        Level level;
+        String text;
+        Object detail;
+        Throwable error;
+        boolean isRequest;
+        final Frame frame = new Frame();
+
+        void publish() {
+            published = sequence + 1;
+        }
+
+        // Drop references so logged payloads can be collected
+        void clear() {
+            text = null;
+            detail = null;
+            error = null;
+            frame.copyFrom(EMPTY_FRAME);
+        }
+    }
+
+    private static final Frame EMPTY_FRAME = new Frame();
+}
@@ -0,0 +1,126 @@
+/*
+ * The MIT License (MIT)
+Copyright © 2023 <copyright holders>
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this 
+software and associated documentation files (the “Software”), to deal in the Software 
+without restriction, including without limitation the rights to use, copy, modify, merge, 
+publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons 
+to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies 
+or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR 
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE 
+FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR 
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+DEALINGS IN THE SOFTWARE.
+ */
+
+/*
+ * Session
+ * A connected client, whichever engine is serving it. Outgoing messages go
+ * through a bounded queue that the engine's writer drains, so a slow or dead
+ * client never blocks the thread that is fanning a message out. Queue entries
+ * are complete wire units in the format the client negotiated, except on
+ * AES-GCM sessions: there they are plaintext bodies, sealed by the writer
+ * under the session's own key.
+ */
+
+package io.chatserver;
+
+import java.net.InetAddress;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+abstract class Session {
+    // What to do when a client's outbound queue is full
+    enum SlowConsumerPolicy {
+        DROP_OLDEST, DROP_NEWEST, DISCONNECT;
+
+        static SlowConsumerPolicy parse(String value) {
+            return valueOf(value.toUpperCase().replace('-', '_'));
+        }
+    }
+
+    protected final BlockingQueue<byte[]> outbound;
+    private final SlowConsumerPolicy policy;
+
+    // Negotiated frame version, 0 for legacy lines; set before the session is added to the client list
+    protected volatile int version;
+
+    // AES-GCM state when negotiated, null for the shared-key formats; set before the session is added
+    protected volatile SessionCipher sessionCipher;
+
+    // Whether the client pings while idle; only these sessions are dropped when they go quiet
+    protected volatile boolean heartbeats;
+
+    // Whether the client accepts compressed bodies; set before the session is added
+    protected volatile boolean compression;
+
+    // The last logged sequence when the session joined; later messages arrive live, not through replay
+    volatile long historyEnd;
+
+    // The client's id, known once it has sent its first message
+    volatile String clientId;
+
+    // The client's remote host, for the per-address rate limit; set by the engine on accept
+    InetAddress address;
+
+    // Why the connection was closed; the first cause recorded wins
+    volatile Metrics.Cause closeCause;
+
+    // Rooms this client has joined, so they can be left when it disconnects
+    final Set<String> rooms = ConcurrentHashMap.newKeySet();
+
+    protected Session(int queueCapacity, SlowConsumerPolicy policy) {
+        this.outbound = new ArrayBlockingQueue<>(queueCapacity);
+        this.policy = policy;
+    }
+
+    // Queue a message for delivery without blocking; call it on the thread that created the message
+    final void send(OutboundMessage message) {
+        queue(sessionCipher != null ? message.body(version, compression) : message.encoded(version, compression));
+    }
+
+    // Queue wire bytes (or a body to seal), applying the slow-consumer policy when the queue is full
+    final void queue(byte[] wire) {
+        if (!outbound.offer(wire)) {
+            switch (policy) {
+                case DROP_NEWEST:
+                    Metrics.messagesDropped.increment();
+                    return;
+                case DROP_OLDEST:
+                    do {
+                        outbound.poll();
+                        Metrics.messagesDropped.increment();
+                    } while (!outbound.offer(wire));
+                    break;
+                case DISCONNECT:
+                    closedBy(Metrics.Cause.SLOW_CONSUMER);
+                    ServerLog.warn("Disconnecting slow client ", remoteAddress());
+                    close();
+                    return;
+            }
+        }
+        messageQueued();
+    }
+
+    final void closedBy(Metrics.Cause cause) {
+        if (closeCause == null) {
+            closeCause = cause;
+        }
+    }
+
+    // Wake the writer after a message was queued
+    protected abstract void messageQueued();
+
+    // Close the connection; may be called from any thread
+    abstract void close();
+
+    abstract String remoteAddress();
+}
@@ -0,0 +1,132 @@
+/*
+ * The MIT License (MIT)
+Copyright © 2023 <copyright holders>
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this 
+software and associated documentation files (the “Software”), to deal in the Software 
+without restriction, including without limitation the rights to use, copy, modify, merge, 
+publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons 
+to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies 
+or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR 
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE 
+FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR 
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+DEALINGS IN THE SOFTWARE.
+ */
+
+/*
+ * SessionCipher
+ * AES-GCM for one binary connection, under a key of its own. After the hello
+ * each side sends a random nonce, and the key is HMAC-SHA256 of both nonces
+ * under the shared key. Frames carry no IV: each direction counts its frames
+ * and uses direction | counter as the IV, so a replayed, dropped or reordered
+ * frame fails authentication.
+ *
+ * Sealing belongs to the connection's writer and opening to its reader, so
+ * the two halves are used from different threads but never concurrently.
+ */
+
+package io.chatserver;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+final class SessionCipher {
+    static final int NONCE_LENGTH = 16;
+    static final int TAG_LENGTH = 16;
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final byte[] KEY_LABEL = "chat-gcm".getBytes(StandardCharsets.US_ASCII);
+    private static final int CLIENT_TO_SERVER = 0;
+    private static final int SERVER_TO_CLIENT = 1;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final SecretKeySpec key;
+    private final Cipher sealer;
+    private final Cipher opener;
+    private final byte[] sealIv;
+    private final byte[] openIv;
+    private long sealed;
+    private long opened;
+
+    // Reused for every sealed frame
+    private ByteBuffer frame = ByteBuffer.allocate(256);
+
+    // The server seals server-to-client frames and opens client-to-server ones
+    SessionCipher(byte[] clientNonce, byte[] serverNonce) throws GeneralSecurityException {
+        this(clientNonce, serverNonce, true);
+    }
+
+    // The client role is the mirror image, which lets benchmarks play both ends
+    SessionCipher(byte[] clientNonce, byte[] serverNonce, boolean server) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(CipherContext.SHARED_KEY, "HmacSHA256"));
+        mac.update(KEY_LABEL);
+        mac.update(clientNonce);
+        mac.update(serverNonce);
+        key = new SecretKeySpec(Arrays.copyOf(mac.doFinal(), 16), "AES");
+        sealer = Cipher.getInstance(TRANSFORMATION);
+        opener = Cipher.getInstance(TRANSFORMATION);
+        sealIv = iv(server ? SERVER_TO_CLIENT : CLIENT_TO_SERVER);
+        openIv = iv(server ? CLIENT_TO_SERVER : SERVER_TO_CLIENT);
+    }
+
+    static byte[] newNonce() {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        RANDOM.nextBytes(nonce);
+        return nonce;
+    }
+
+    // u32 length | AES-GCM(body). The returned buffer is reused by the next call.
+    ByteBuffer seal(byte[] body) throws GeneralSecurityException {
+        long start = System.nanoTime();
+        int length = body.length + TAG_LENGTH;
+        if (frame.capacity() < 4 + length) {
+            frame = ByteBuffer.allocate(Math.max(4 + length, frame.capacity() * 2));
+        }
+        frame.clear();
+        frame.putInt(length);
+        sealer.init(Cipher.ENCRYPT_MODE, key, nextIv(sealIv, sealed++));
+        sealer.doFinal(ByteBuffer.wrap(body), frame);
+        frame.flip();
+        Metrics.encrypt.record(System.nanoTime() - start);
+        return frame;
+    }
+
+    // Decrypt and authenticate one frame body into the plaintext buffer
+    void open(ByteBuffer encrypted, ByteBuffer plaintext) throws GeneralSecurityException {
+        opener.init(Cipher.DECRYPT_MODE, key, nextIv(openIv, opened++));
+        opener.doFinal(encrypted, plaintext);
+    }
+
+    // Account for a frame that was shed unread, so the next one opens with the right IV
+    void skip() {
+        opened++;
+    }
+
+    private static byte[] iv(int direction) {
+        byte[] iv = new byte[12];
+        iv[3] = (byte) direction;
+        return iv;
+    }
+
+    private static GCMParameterSpec nextIv(byte[] iv, long counter) {
+        for (int i = 11; i >= 4; i--) {
+            iv[i] = (byte) counter;
+            counter >>>= 8;
+        }
+        return new GCMParameterSpec(TAG_LENGTH * 8, iv);
+    }
+}
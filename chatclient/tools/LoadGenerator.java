@@ -0,0 +1,317 @@
+/*
+ * The MIT License (MIT)
+Copyright © 2023 <copyright holders>
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this 
+software and associated documentation files (the “Software”), to deal in the Software 
+without restriction, including without limitation the rights to use, copy, modify, merge, 
+publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons 
+to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies 
+or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR 
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE 
+FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR 
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+DEALINGS IN THE SOFTWARE.
+ */
+
+/*
+ * LoadGenerator
+ * Headless stand-in for thousands of ChatClient apps. Each simulated client
+ * speaks the extension's wire format: a random UUID client id, SendMessage or
+ * SendMessageWithDetails requests as Base64(AES) text lines, or the binary
+ * frames when --format=binary. Messages are sent at a fixed total rate,
+ * spread round-robin over the connections, and every delivered copy is
+ * timed against the moment it was scheduled to be sent, so a stalled server
+ * shows up as latency instead of a lower send rate.
+ *
+ * Usage (from the repository root, with a ChatServer running):
+ *   mvn -B package
+ *   java -cp tools/target/tools.jar io.chatserver.LoadGenerator --connections=2000 --rate=5000 --size=128
+ *
+ * Options: --host, --port (a comma-separated list spreads the clients over
+ * the nodes of a cluster in turn), --connections, --rate (messages per second, all
+ * clients together), --size (message bytes), --method (SendMessage,
+ * SendMessageWithDetails or mixed), --format (legacy or binary),
+ * --features (with binary frames, a comma-separated list of gcm and deflate;
+ * bodies shorter than the compression threshold are still sent as they are),
+ * --warmup and --duration (seconds), --threads (platform or virtual readers).
+ *
+ * Every client receives every broadcast, so deliveries grow with
+ * connections x rate. The report gives sends and deliveries per second and
+ * the HdrHistogram percentile distribution of the end-to-end latency.
+ */
+
+package io.chatserver;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public class LoadGenerator {
+    private static final SecretKeySpec KEY_SPEC = new SecretKeySpec("MySuperSecretKey".getBytes(), "AES");
+    private static final long MAX_LATENCY_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private static final Recorder latencies = new Recorder(MAX_LATENCY_NANOS, 3);
+    private static final LongAdder sent = new LongAdder();
+    private static final LongAdder delivered = new LongAdder();
+    private static volatile boolean running = true;
+    // Only messages scheduled after the warmup are counted
+    private static volatile long measureFrom = Long.MAX_VALUE;
+
+    public static void main(String[] args) throws Exception {
+        String host = ChatServer.option(args, "host", "localhost");
+        String[] ports = ChatServer.option(args, "port", String.valueOf(ChatServer.PORT)).split(",");
+        int connections = Integer.parseInt(ChatServer.option(args, "connections", "1000"));
+        int rate = Integer.parseInt(ChatServer.option(args, "rate", "1000"));
+        int size = Integer.parseInt(ChatServer.option(args, "size", "64"));
+        String method = ChatServer.option(args, "method", "SendMessage");
+        boolean binary = ChatServer.option(args, "format", "legacy").equals("binary");
+        int features = features(ChatServer.option(args, "features", ""));
+        if (features != 0 && !binary) {
+            throw new IllegalArgumentException("--features needs --format=binary");
+        }
+        int warmup = Integer.parseInt(ChatServer.option(args, "warmup", "5"));
+        int duration = Integer.parseInt(ChatServer.option(args, "duration", "30"));
+        ThreadFactory readers = ChatServer.handlerThreads(ChatServer.option(args, "threads", "platform"));
+
+        // Connect one at a time so the server's accept backlog never overflows
+        List<SimulatedClient> clients = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            SimulatedClient client = new SimulatedClient(new Socket(host, Integer.parseInt(ports[i % ports.length])), binary,
+                    features);
+            clients.add(client);
+            Thread reader = readers.newThread(client::readReplies);
+            reader.setDaemon(true);
+            reader.start();
+        }
+        System.out.println("Connected " + connections + " clients (" + (binary ? "binary" : "legacy") + " format"
+                + ((features & FrameCodec.FEATURE_GCM) != 0 ? ", AES-GCM" : "")
+                + ((features & FrameCodec.FEATURE_DEFLATE) != 0 ? ", deflate" : "") + ")");
+
+        String padding = padding(size);
+        long interval = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rate);
+        long start = System.nanoTime();
+        long warmupEnd = start + TimeUnit.SECONDS.toNanos(warmup);
+        long end = warmupEnd + TimeUnit.SECONDS.toNanos(duration);
+        measureFrom = warmupEnd;
+
+        // Pace sends from one thread; intended send times never slip, so backpressure counts as latency
+        for (long i = 0; ; i++) {
+            long intended = start + i * interval;
+            if (intended >= end) {
+                break;
+            }
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            String requestMethod = method.equals("mixed") ? (i % 2 == 0 ? "SendMessage" : "SendMessageWithDetails") : method;
+            String timing = intended + "|";
+            clients.get((int) (i % connections)).send(requestMethod, timing + padding.substring(Math.min(timing.length(), size)));
+            if (intended >= warmupEnd) {
+                sent.increment();
+            }
+        }
+
+        // Let in-flight deliveries arrive before reporting
+        Thread.sleep(2000);
+        running = false;
+        Histogram histogram = latencies.getIntervalHistogram();
+        double seconds = duration;
+        System.out.println(String.format("sent %.0f msg/s, delivered %.0f msg/s, %d connections, %d-byte messages",
+                sent.sum() / seconds, delivered.sum() / seconds, connections, size));
+        System.out.println(String.format("latency (us): p50 %.1f  p99 %.1f  p999 %.1f  max %.1f",
+                histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(99) / 1000.0,
+                histogram.getValueAtPercentile(99.9) / 1000.0, histogram.getMaxValue() / 1000.0));
+        histogram.outputPercentileDistribution(System.out, 1000.0);
+        for (SimulatedClient client : clients) {
+            client.socket.close();
+        }
+    }
+
+    // Hello feature flags from a list such as "gcm,deflate"
+    private static int features(String names) {
+        int features = 0;
+        for (String name : names.split(",")) {
+            if (name.equals("gcm")) {
+                features |= FrameCodec.FEATURE_GCM;
+            } else if (name.equals("deflate")) {
+                features |= FrameCodec.FEATURE_DEFLATE;
+            } else if (!name.isEmpty()) {
+                throw new IllegalArgumentException("Unknown feature " + name + " (expected gcm or deflate)");
+            }
+        }
+        return features;
+    }
+
+    private static String padding(int size) {
+        char[] chars = new char[size];
+        Arrays.fill(chars, 'x');
+        return new String(chars);
+    }
+
+    // Read the nanoTime a message was scheduled at from the front of its text
+    private static void recordLatency(String text) {
+        int bar = text.indexOf('|');
+        if (bar <= 0) {
+            return;
+        }
+        long intended = Long.parseLong(text.substring(0, bar));
+        if (running && intended >= measureFrom) {
+            latencies.recordValue(Math.min(System.nanoTime() - intended, MAX_LATENCY_NANOS));
+            delivered.increment();
+        }
+    }
+
+    // One connection with the extension's id, address and encodings
+    private static final class SimulatedClient {
+        final Socket socket;
+        private final boolean binary;
+        private final String clientId = UUID.randomUUID().toString();
+        private final InetAddress localAddress;
+        private final OutputStream out;
+        private final Cipher encrypt;
+        private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        // Set when the hello negotiated AES-GCM; sealed by the sender, opened by the reader
+        private SessionCipher session;
+        private boolean compress;
+
+        SimulatedClient(Socket socket, boolean binary, int features) throws IOException, GeneralSecurityException {
+            this.socket = socket;
+            this.binary = binary;
+            this.localAddress = socket.getLocalAddress();
+            this.out = socket.getOutputStream();
+            this.encrypt = Cipher.getInstance("AES");
+            encrypt.init(Cipher.ENCRYPT_MODE, KEY_SPEC);
+            socket.setTcpNoDelay(true);
+            if (binary) {
+                negotiate(features);
+            }
+        }
+
+        // Magic "\xC7CHT", version and the requested features, like the extension's hello. Heartbeats
+        // are never asked for: the paced sender keeps every connection busy.
+        private void negotiate(int features) throws IOException, GeneralSecurityException {
+            byte[] hello = Arrays.copyOf(FrameCodec.HELLO_MAGIC, FrameCodec.HELLO_LENGTH);
+            hello[4] = FrameCodec.VERSION;
+            hello[5] = (byte) (features >> 8);
+            hello[6] = (byte) features;
+            out.write(hello);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] reply = new byte[FrameCodec.HELLO_LENGTH];
+            in.readFully(reply);
+            if (FrameCodec.helloVersion(reply) < 2) {
+                throw new IOException("Server does not speak binary frame version 2");
+            }
+            if ((FrameCodec.helloFeatures(reply) & features) != features) {
+                throw new IOException("Server did not accept all of the requested features");
+            }
+            if ((features & FrameCodec.FEATURE_GCM) != 0) {
+                byte[] serverNonce = new byte[SessionCipher.NONCE_LENGTH];
+                in.readFully(serverNonce);
+                byte[] clientNonce = SessionCipher.newNonce();
+                out.write(clientNonce);
+                session = new SessionCipher(clientNonce, serverNonce, false);
+            }
+            compress = (features & FrameCodec.FEATURE_DEFLATE) != 0;
+        }
+
+        // Called from the single sender thread
+        void send(String method, String message) {
+            try {
+                if (binary) {
+                    writeFrame(method.equals("SendMessage") ? FrameCodec.SEND_MESSAGE : FrameCodec.SEND_MESSAGE_WITH_DETAILS, message);
+                } else {
+                    String line = method + "," + dateFormat.format(new Date()) + "," + localAddress.getHostAddress() + "," + clientId + "," + message;
+                    out.write((Base64.getEncoder().encodeToString(encrypt.doFinal(line.getBytes(StandardCharsets.UTF_8))) + "\n")
+                            .getBytes(StandardCharsets.US_ASCII));
+                }
+            } catch (IOException | GeneralSecurityException e) {
+                throw new IllegalStateException("Send failed for client " + clientId, e);
+            }
+        }
+
+        private void writeFrame(byte type, String message) throws IOException, GeneralSecurityException {
+            byte[] id = clientId.getBytes(StandardCharsets.UTF_8);
+            byte[] address = localAddress.getAddress();
+            byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer body = ByteBuffer.allocate(FrameCodec.bodyLength(FrameCodec.VERSION, id, address, null, payload));
+            FrameCodec.encode(body, FrameCodec.VERSION, type, System.currentTimeMillis(), 0, id, address, null, payload);
+            byte[] plaintext = body.array();
+            if (compress) {
+                byte[] compressed = Compression.compress(ByteBuffer.wrap(plaintext));
+                if (compressed != null) {
+                    plaintext = compressed;
+                }
+            }
+            if (session != null) {
+                ByteBuffer sealed = session.seal(plaintext);
+                out.write(sealed.array(), 0, sealed.limit());
+            } else {
+                byte[] encrypted = encrypt.doFinal(plaintext);
+                out.write(ByteBuffer.allocate(4 + encrypted.length).putInt(encrypted.length).put(encrypted).array());
+            }
+        }
+
+        // Decrypt every delivery and time the ones that carry a send time
+        void readReplies() {
+            try {
+                Cipher decrypt = Cipher.getInstance("AES");
+                decrypt.init(Cipher.DECRYPT_MODE, KEY_SPEC);
+                if (binary) {
+                    // Opened and inflated the way the server reads client frames
+                    CipherContext crypto = new CipherContext();
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    Frame frame = new Frame();
+                    while (true) {
+                        byte[] encrypted = new byte[in.readInt()];
+                        in.readFully(encrypted);
+                        ChatServer.decodeFrame(ByteBuffer.wrap(encrypted), crypto, session, frame, FrameCodec.VERSION);
+                        if (frame.type == FrameCodec.DELIVER) {
+                            recordLatency(frame.payloadText());
+                        }
+                    }
+                }
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                String line;
+                while ((line = in.readLine()) != null) {
+                    recordLatency(new String(decrypt.doFinal(Base64.getDecoder().decode(line)), StandardCharsets.UTF_8));
+                }
+            } catch (IOException | GeneralSecurityException e) {
+                if (running) {
+                    System.err.println("Client " + clientId + " stopped: " + e);
+                }
+            }
+        }
+    }
+}
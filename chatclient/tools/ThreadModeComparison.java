@@ -0,0 +1,151 @@
+/*
+ * The MIT License (MIT)
+Copyright © 2023 <copyright holders>
+
+Permission is hereby granted, free of charge, to any person obtaining a copy of this 
+software and associated documentation files (the “Software”), to deal in the Software 
+without restriction, including without limitation the rights to use, copy, modify, merge, 
+publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons 
+to whom the Software is furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all copies 
+or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED “AS IS”, WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, 
+INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR 
+PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE 
+FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR 
+OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER 
+DEALINGS IN THE SOFTWARE.
+ */
+
+/*
+ * ThreadModeComparison
+ * Starts ChatServer once per classic-engine thread mode, opens many idle
+ * connections and reports the server's resident memory per connection and
+ * the accept-to-first-message latency seen by each new client.
+ *
+ * Usage (from the repository root):
+ *   mvn -B package
+ *   java -cp tools/target/tools.jar io.chatserver.ThreadModeComparison --connections=10000 --modes=platform,virtual
+ *
+ * The server JVM is the same java binary that runs this tool, so run it on
+ * JDK 21+ to include the virtual mode. Memory is read from /proc (Linux only).
+ */
+
+package io.chatserver;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+
+public class ThreadModeComparison {
+    private static final String HOST = "localhost";
+    private static final int PORT = 12345;
+    private static final SecretKeySpec KEY_SPEC = new SecretKeySpec("MySuperSecretKey".getBytes(), "AES");
+
+    public static void main(String[] args) throws Exception {
+        int connections = Integer.parseInt(ChatServer.option(args, "connections", "5000"));
+        String[] modes = ChatServer.option(args, "modes", "platform,virtual").split(",");
+
+        System.out.println(String.format("%-10s %12s %14s %12s %12s %12s",
+                "mode", "connections", "rss/conn (KB)", "p50 (us)", "p99 (us)", "max (us)"));
+        for (String mode : modes) {
+            measure(mode, connections);
+        }
+    }
+
+    private static void measure(String mode, int connections) throws Exception {
+        String java = ProcessHandle.current().info().command().orElse("java");
+        Process server = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "io.chatserver.ChatServer", "--threads=" + mode)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        List<Socket> sockets = new ArrayList<>(connections);
+        try {
+            // Warm the server up with a short-lived client so class loading is not counted
+            awaitServer(server);
+            for (int i = 0; i < 100; i++) {
+                firstMessage(new Socket(HOST, PORT)).close();
+            }
+            Thread.sleep(500);
+            long rssBefore = residentKilobytes(server.pid());
+
+            long[] latencies = new long[connections];
+            for (int i = 0; i < connections; i++) {
+                long start = System.nanoTime();
+                sockets.add(firstMessage(new Socket(HOST, PORT)));
+                latencies[i] = System.nanoTime() - start;
+            }
+            Thread.sleep(1000);
+            long rssAfter = residentKilobytes(server.pid());
+
+            Arrays.sort(latencies);
+            System.out.println(String.format("%-10s %12d %14.1f %12d %12d %12d",
+                    mode, connections, (rssAfter - rssBefore) / (double) connections,
+                    latencies[connections / 2] / 1000,
+                    latencies[(int) (connections * 0.99)] / 1000,
+                    latencies[connections - 1] / 1000));
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    // Send one message on a fresh connection and wait for the server's echo. It goes to a room
+    // nobody joins, so the idle connections opened before it are not sent a copy: a broadcast
+    // would make each probe cost O(connections) and fill their unread socket buffers.
+    private static Socket firstMessage(Socket socket) throws Exception {
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        String message = "SendRoomMessage,2023-10-15 00:00:00,127.0.0.1," + UUID.randomUUID() + ",probe,hello";
+
+        Cipher cipher = Cipher.getInstance("AES");
+        cipher.init(Cipher.ENCRYPT_MODE, KEY_SPEC);
+        out.println(Base64.getEncoder().encodeToString(cipher.doFinal(message.getBytes())));
+        if (in.readLine() == null) {
+            throw new IOException("Server closed the connection before replying");
+        }
+        return socket;
+    }
+
+    private static void awaitServer(Process server) throws Exception {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            if (!server.isAlive()) {
+                throw new IOException("Server exited with status " + server.exitValue());
+            }
+            try {
+                new Socket(HOST, PORT).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IOException("Server did not start listening on port " + PORT);
+    }
+
+    private static long residentKilobytes(long pid) throws IOException {
+        for (String line : Files.readAllLines(Paths.get("/proc/" + pid + "/status"))) {
+            if (line.startsWith("VmRSS:")) {
+                return Long.parseLong(line.replaceAll("[^0-9]", ""));
+            }
+        }
+        throw new IOException("VmRSS not found for process " + pid);
+    }
+}